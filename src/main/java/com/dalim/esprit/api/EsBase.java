@@ -1,5 +1,10 @@
 package com.dalim.esprit.api;
 
+import java.io.IOException;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+
 public class EsBase implements EsReferenceable {
   private String name;
   private Integer ID;
@@ -24,6 +29,29 @@ public class EsBase implements EsReferenceable {
     return null;
   }
 
+  /**
+   * Reads one member of this object's JSON (see {@link JsonBinding}). Subclasses that declare this
+   * method read their own members and defer to super for the rest.
+   * 
+   * @param member JSON member name.
+   * @param in positioned at the member value.
+   * @param gson for the non trivial values.
+   * @return false if the member was not read (it is skipped).
+   * @throws IOException
+   */
+  protected boolean readJson(String member, JsonReader in, Gson gson) throws IOException {
+    switch (member) {
+      case "name":
+        name = JsonBinding.string(in);
+        return true;
+      case "ID":
+        ID = JsonBinding.integer(in);
+        return true;
+      default:
+        return false;
+    }
+  }
+
   /**
    * This is here to make certain method returns make sense.
    * 
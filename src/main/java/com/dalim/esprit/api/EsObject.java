@@ -1,12 +1,17 @@
 package com.dalim.esprit.api;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.time.Instant;
 import java.util.Date;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
+import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
 
 public class EsObject extends EsBase implements EsClassable {
 
@@ -39,6 +44,20 @@ public class EsObject extends EsBase implements EsClassable {
     return creationDate;
   }
 
+  /**
+   * @return the lastModificationDate date as a java.time Instant (if there is one).
+   */
+  public Optional<Instant> getLastModificationInstant() {
+    return Optional.ofNullable(lastModificationDate).map(Date::toInstant);
+  }
+
+  /**
+   * @return the creationDate date as a java.time Instant (if there is one).
+   */
+  public Optional<Instant> getCreationInstant() {
+    return Optional.ofNullable(creationDate).map(Date::toInstant);
+  }
+
   public EsClass getEsclass() {
     return esclass;
   }
@@ -47,6 +66,26 @@ public class EsObject extends EsBase implements EsClassable {
     return folderType;
   }
 
+  @Override
+  protected boolean readJson(String member, JsonReader in, Gson gson) throws IOException {
+    switch (member) {
+      case "lastModificationDate":
+        lastModificationDate = JsonBinding.value(in, gson, Date.class);
+        return true;
+      case "creationDate":
+        creationDate = JsonBinding.value(in, gson, Date.class);
+        return true;
+      case "class":
+        esclass = JsonBinding.value(in, gson, EsClass.class);
+        return true;
+      case "folderType":
+        folderType = JsonBinding.string(in);
+        return true;
+      default:
+        return super.readJson(member, in, gson);
+    }
+  }
+
   public static class ListOf extends com.dalim.esprit.api.ListOf<EsObject> {
 
     public List<EsObject> getByESClass(EsClass esclass) {
@@ -0,0 +1,251 @@
+package com.dalim.esprit.api;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * <p>
+ * Hand written JSON binding for the hot model types (registered in the default Gson builder).
+ *
+ * <p>
+ * Types that declare their own {@link EsBase#readJson(String, JsonReader, Gson)} are read member by
+ * member straight from the stream, as are {@link ListOf} wrappers that add no fields of their own.
+ * Everything else (and all writing) falls back to the reflective Gson adapters.
+ *
+ */
+public final class JsonBinding implements TypeAdapterFactory {
+  public static final JsonBinding FACTORY = new JsonBinding();
+
+  private JsonBinding() {
+
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+    Class<? super T> raw = type.getRawType();
+    // Only the model types are looked at - other (eg: JDK) types may not allow reflective access.
+    if (EsBase.class.isAssignableFrom(raw) && declaresReadJson(raw)) {
+      Constructor<? super T> constructor = constructor(raw);
+      return constructor == null ? null : new ObjectAdapter<>(gson, gson.getDelegateAdapter(this, type), constructor);
+    }
+    if (ListOf.class.isAssignableFrom(raw) && !addsFields(raw)) {
+      Constructor<? super T> constructor = constructor(raw);
+      Type element = elementType(type.getType());
+      if (constructor != null && element != null) {
+        @SuppressWarnings("rawtypes")
+        TypeAdapter adapter = new ListAdapter(gson, gson.getDelegateAdapter(this, type), constructor, gson.getAdapter(TypeToken.get(element)));
+        return adapter;
+      }
+    }
+    return null;
+  }
+
+  private static <T> Constructor<T> constructor(Class<T> raw) {
+    if (Modifier.isAbstract(raw.getModifiers())) {
+      return null;
+    }
+    try {
+      Constructor<T> constructor = raw.getDeclaredConstructor();
+      constructor.setAccessible(true);
+      return constructor;
+    } catch (NoSuchMethodException | RuntimeException e) {
+      // Not accessible (SecurityException or InaccessibleObjectException) - use the reflective adapter.
+      return null;
+    }
+  }
+
+  private static boolean declaresReadJson(Class<?> raw) {
+    try {
+      raw.getDeclaredMethod("readJson", String.class, JsonReader.class, Gson.class);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private static boolean addsFields(Class<?> raw) {
+    for (Class<?> c = raw; c != ListOf.class; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers()) && !field.isSynthetic()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static Type elementType(Type type) {
+    for (Type t = type; t != null;) {
+      if (t instanceof ParameterizedType && ((ParameterizedType) t).getRawType() == ListOf.class) {
+        Type element = ((ParameterizedType) t).getActualTypeArguments()[0];
+        return element instanceof Class ? element : null;
+      }
+      if (!(t instanceof Class) || t == ListOf.class) {
+        return null;
+      }
+      t = ((Class<?>) t).getGenericSuperclass();
+    }
+    return null;
+  }
+
+  /*
+   * Readers for the member values - these follow the Gson rules (quoted numbers and booleans are
+   * accepted, null is null).
+   */
+
+  public static String string(JsonReader in) throws IOException {
+    JsonToken token = in.peek();
+    if (token == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    return token == JsonToken.BOOLEAN ? Boolean.toString(in.nextBoolean()) : in.nextString();
+  }
+
+  public static Integer integer(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    return in.nextInt();
+  }
+
+  public static Float number(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    return (float) in.nextDouble();
+  }
+
+  public static Boolean bool(JsonReader in) throws IOException {
+    JsonToken token = in.peek();
+    if (token == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    return token == JsonToken.STRING ? Boolean.parseBoolean(in.nextString()) : in.nextBoolean();
+  }
+
+  /*
+   * Primitive fields keep their current value when the member is null.
+   */
+
+  public static int integer(JsonReader in, int current) throws IOException {
+    Integer value = integer(in);
+    return value == null ? current : value;
+  }
+
+  public static float number(JsonReader in, float current) throws IOException {
+    Float value = number(in);
+    return value == null ? current : value;
+  }
+
+  public static boolean bool(JsonReader in, boolean current) throws IOException {
+    Boolean value = bool(in);
+    return value == null ? current : value;
+  }
+
+  public static <T> T value(JsonReader in, Gson gson, Class<T> type) throws IOException {
+    return gson.getAdapter(type).read(in);
+  }
+
+  public static <T> T value(JsonReader in, Gson gson, TypeToken<T> type) throws IOException {
+    return gson.getAdapter(type).read(in);
+  }
+
+  private static class ObjectAdapter<T> extends TypeAdapter<T> {
+    private final Gson gson;
+    private final TypeAdapter<T> delegate;
+    private final Constructor<? super T> constructor;
+
+    private ObjectAdapter(Gson gson, TypeAdapter<T> delegate, Constructor<? super T> constructor) {
+      this.gson = gson;
+      this.delegate = delegate;
+      this.constructor = constructor;
+    }
+
+    @Override
+    public void write(JsonWriter out, T value) throws IOException {
+      delegate.write(out, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+      EsBase o = (EsBase) newInstance(constructor);
+      in.beginObject();
+      while (in.hasNext()) {
+        if (!o.readJson(in.nextName(), in, gson)) {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return (T) o;
+    }
+
+  }
+
+  private static class ListAdapter<T extends EsBase> extends TypeAdapter<ListOf<T>> {
+    private final Gson gson;
+    private final TypeAdapter<ListOf<T>> delegate;
+    private final Constructor<ListOf<T>> constructor;
+    private final TypeAdapter<T> elements;
+
+    private ListAdapter(Gson gson, TypeAdapter<ListOf<T>> delegate, Constructor<ListOf<T>> constructor, TypeAdapter<T> elements) {
+      this.gson = gson;
+      this.delegate = delegate;
+      this.constructor = constructor;
+      this.elements = elements;
+    }
+
+    @Override
+    public void write(JsonWriter out, ListOf<T> value) throws IOException {
+      delegate.write(out, value);
+    }
+
+    @Override
+    public ListOf<T> read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+      ListOf<T> o = newInstance(constructor);
+      in.beginObject();
+      while (in.hasNext()) {
+        if (!o.readJson(in.nextName(), in, gson, elements)) {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return o;
+    }
+
+  }
+
+  private static <T> T newInstance(Constructor<T> constructor) throws IOException {
+    try {
+      return constructor.newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("Unable to create [" + constructor.getDeclaringClass() + "]", e);
+    }
+  }
+
+}
@@ -1,18 +1,32 @@
 package com.dalim.esprit.api;
 
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 public class ListOf<T extends EsBase> {
   private List<T> objectList = new ArrayList<>();
   @SerializedName("class")
   private EsClass esclass;
+  private transient volatile Index<T> index;
 
+  /**
+   * @return the objects - changes made through the list are seen by {@link #getByName(String)} and
+   *         {@link #getByID(int)}.
+   */
   public List<T> getAll() {
-    return objectList;
+    return objectList == null ? null : new Live();
   }
 
   public EsClass getEsclass() {
@@ -20,11 +34,108 @@ public class ListOf<T extends EsBase> {
   }
 
   public Optional<T> getByName(String name) {
-    return objectList.stream().filter(o -> o.getName().equals(name)).findFirst();
+    return Optional.ofNullable(index().names.get(name));
   }
 
   public Optional<T> getByID(int id) {
-    return objectList.stream().filter(o -> o.getID() == id).findFirst();
+    return Optional.ofNullable(index().ids.get(id));
+  }
+
+  /**
+   * The name and ID lookups are built once (on first use) - and again after the list is changed.
+   */
+  private Index<T> index() {
+    Index<T> current = index;
+    List<T> list = objectList == null ? Collections.emptyList() : objectList;
+    if (current == null || current.list != list) {
+      index = current = new Index<>(list);
+    }
+    return current;
+  }
+
+  /**
+   * The list returned by {@link #getAll()} - every change (including through iterators and sub
+   * lists) drops the index.
+   */
+  private class Live extends AbstractList<T> {
+
+    @Override
+    public T get(int i) {
+      return objectList.get(i);
+    }
+
+    @Override
+    public int size() {
+      return objectList.size();
+    }
+
+    @Override
+    public T set(int i, T o) {
+      index = null;
+      return objectList.set(i, o);
+    }
+
+    @Override
+    public void add(int i, T o) {
+      index = null;
+      objectList.add(i, o);
+      modCount++;
+    }
+
+    @Override
+    public T remove(int i) {
+      index = null;
+      modCount++;
+      return objectList.remove(i);
+    }
+
+  }
+
+  private static class Index<T extends EsBase> {
+    private final List<T> list;
+    private final Map<String, T> names = new HashMap<>();
+    private final Map<Integer, T> ids = new HashMap<>();
+
+    private Index(List<T> list) {
+      this.list = list;
+      // First match wins (as the linear search did).
+      for (T o : list) {
+        if (o.getName() != null) {
+          names.putIfAbsent(o.getName(), o);
+        }
+        if (o.getID() != null) {
+          ids.putIfAbsent(o.getID(), o);
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Reads one member of the list JSON (see {@link JsonBinding}).
+   */
+  boolean readJson(String member, JsonReader in, Gson gson, TypeAdapter<T> elements) throws IOException {
+    switch (member) {
+      case "objectList":
+        if (in.peek() == JsonToken.NULL) {
+          in.nextNull();
+          objectList = null;
+        } else {
+          List<T> list = new ArrayList<>();
+          in.beginArray();
+          while (in.hasNext()) {
+            list.add(elements.read(in));
+          }
+          in.endArray();
+          objectList = list;
+        }
+        return true;
+      case "class":
+        esclass = JsonBinding.value(in, gson, EsClass.class);
+        return true;
+      default:
+        return false;
+    }
   }
 
 }
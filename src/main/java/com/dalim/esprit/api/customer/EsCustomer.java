@@ -1,5 +1,6 @@
 package com.dalim.esprit.api.customer;
 
+import java.io.IOException;
 import java.util.List;
 
 import org.keeber.esprit.EspritAPI.ApiRequest;
@@ -7,7 +8,11 @@ import org.keeber.esprit.EspritAPI.ApiRequest;
 import com.dalim.esprit.api.EsObject;
 import com.dalim.esprit.api.EsReferenceable;
 import com.dalim.esprit.api.EsStatus;
+import com.dalim.esprit.api.JsonBinding;
+import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 
 public class EsCustomer extends EsObject {
   private String XMP, description, webSite, lastModificationUser, code, creationUser, mail, phone;
@@ -42,6 +47,7 @@ public class EsCustomer extends EsObject {
   private String shippingState;
   @SerializedName("shipping.country")
   private String shippingCountry;
+  private static final TypeToken<List<ESTemplate>> TEMPLATES = new TypeToken<List<ESTemplate>>() {};
 
   /*
    * Getters
@@ -135,6 +141,80 @@ public class EsCustomer extends EsObject {
     return shippingCountry;
   }
 
+  @Override
+  protected boolean readJson(String member, JsonReader in, Gson gson) throws IOException {
+    switch (member) {
+      case "XMP":
+        XMP = JsonBinding.string(in);
+        return true;
+      case "description":
+        description = JsonBinding.string(in);
+        return true;
+      case "webSite":
+        webSite = JsonBinding.string(in);
+        return true;
+      case "lastModificationUser":
+        lastModificationUser = JsonBinding.string(in);
+        return true;
+      case "code":
+        code = JsonBinding.string(in);
+        return true;
+      case "creationUser":
+        creationUser = JsonBinding.string(in);
+        return true;
+      case "mail":
+        mail = JsonBinding.string(in);
+        return true;
+      case "phone":
+        phone = JsonBinding.string(in);
+        return true;
+      case "ntlm":
+        ntlm = JsonBinding.bool(in);
+        return true;
+      case "defaultProjectTemplateID":
+        defaultProjectTemplateID = JsonBinding.integer(in);
+        return true;
+      case "phone-2":
+        phone2 = JsonBinding.string(in);
+        return true;
+      case "billing.address":
+        billingAddress = JsonBinding.string(in);
+        return true;
+      case "billing.city":
+        billingCity = JsonBinding.string(in);
+        return true;
+      case "billing.zipCode":
+        billingZipcode = JsonBinding.string(in);
+        return true;
+      case "billing.state":
+        billingState = JsonBinding.string(in);
+        return true;
+      case "billing.country":
+        billingCountry = JsonBinding.string(in);
+        return true;
+      case "shipping.address":
+        shippingAddress = JsonBinding.string(in);
+        return true;
+      case "shipping.city":
+        shippingCity = JsonBinding.string(in);
+        return true;
+      case "shipping.zipCode":
+        shippingZipcode = JsonBinding.string(in);
+        return true;
+      case "shipping.state":
+        shippingState = JsonBinding.string(in);
+        return true;
+      case "shipping.country":
+        shippingCountry = JsonBinding.string(in);
+        return true;
+      case "projectTemplateList":
+        projectTemplateList = JsonBinding.value(in, gson, TEMPLATES);
+        return true;
+      default:
+        return super.readJson(member, in, gson);
+    }
+  }
+
   /**
    * Template class as returned by parent Customer.
    * 
@@ -1,5 +1,6 @@
 package com.dalim.esprit.api.document;
 
+import java.io.IOException;
 import java.util.List;
 
 import org.keeber.esprit.EspritAPI.ApiRequest;
@@ -8,12 +9,16 @@ import com.dalim.esprit.api.ESMetadataLayout;
 import com.dalim.esprit.api.EsObject;
 import com.dalim.esprit.api.EsReferenceable;
 import com.dalim.esprit.api.EsStatus;
+import com.dalim.esprit.api.JsonBinding;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 
 public class EsDocument extends EsObject {
   private String creationUser, lastModificationUser, documentWorkflow, UUID, currentRevision, XMP, colorSpaceName, viewingCondition;
   private Integer jobID, lastRevision, priority;
   private List<ESMetadataLayout> metadataLayout;
-
+  private static final TypeToken<List<ESMetadataLayout>> LAYOUTS = new TypeToken<List<ESMetadataLayout>>() {};
 
   public String getCreationUser() {
     return creationUser;
@@ -65,6 +70,50 @@ public class EsDocument extends EsObject {
     return metadataLayout;
   }
 
+  @Override
+  protected boolean readJson(String member, JsonReader in, Gson gson) throws IOException {
+    switch (member) {
+      case "creationUser":
+        creationUser = JsonBinding.string(in);
+        return true;
+      case "lastModificationUser":
+        lastModificationUser = JsonBinding.string(in);
+        return true;
+      case "documentWorkflow":
+        documentWorkflow = JsonBinding.string(in);
+        return true;
+      case "UUID":
+        UUID = JsonBinding.string(in);
+        return true;
+      case "currentRevision":
+        currentRevision = JsonBinding.string(in);
+        return true;
+      case "XMP":
+        XMP = JsonBinding.string(in);
+        return true;
+      case "colorSpaceName":
+        colorSpaceName = JsonBinding.string(in);
+        return true;
+      case "viewingCondition":
+        viewingCondition = JsonBinding.string(in);
+        return true;
+      case "jobID":
+        jobID = JsonBinding.integer(in);
+        return true;
+      case "lastRevision":
+        lastRevision = JsonBinding.integer(in);
+        return true;
+      case "priority":
+        priority = JsonBinding.integer(in);
+        return true;
+      case "metadataLayout":
+        metadataLayout = JsonBinding.value(in, gson, LAYOUTS);
+        return true;
+      default:
+        return super.readJson(member, in, gson);
+    }
+  }
+
   /**
    * Returns creation params for new documents. The path or ID - of the JOB - is required, as well
    * as the document name.
@@ -4,13 +4,24 @@ import java.awt.Color;
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Optional;
 
 import com.dalim.esprit.api.EsClass;
+import com.dalim.esprit.api.JsonBinding;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * This class represents a dialog Note (basically).
@@ -142,6 +153,20 @@ public class EsNote {
     return modified;
   }
 
+  /**
+   * @return the created date as a java.time Instant (if there is one).
+   */
+  public Optional<Instant> getCreatedInstant() {
+    return Optional.ofNullable(created).map(Date::toInstant);
+  }
+
+  /**
+   * @return the modified date as a java.time Instant (if there is one).
+   */
+  public Optional<Instant> getModifiedInstant() {
+    return Optional.ofNullable(modified).map(Date::toInstant);
+  }
+
   public boolean isChecked() {
     return checked;
   }
@@ -285,6 +310,141 @@ public class EsNote {
 
   }
 
+  /**
+   * Streaming JSON binding for notes (registered in the default Gson builder) - notes are read in
+   * bulk when listing annotations so they skip the reflective adapter. Writing is left to Gson.
+   */
+  public static final TypeAdapterFactory JSON_ADAPTER = new TypeAdapterFactory() {
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+      return type.getRawType() == EsNote.class ? (TypeAdapter<T>) new JsonAdapter(gson, gson.getDelegateAdapter(this, TypeToken.get(EsNote.class))) : null;
+    }
+
+  };
+
+  private static final TypeToken<List<EsNote>> REPLIES = new TypeToken<List<EsNote>>() {};
+
+  private static class JsonAdapter extends TypeAdapter<EsNote> {
+    private final Gson gson;
+    private final TypeAdapter<EsNote> delegate;
+
+    private JsonAdapter(Gson gson, TypeAdapter<EsNote> delegate) {
+      this.gson = gson;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void write(JsonWriter out, EsNote value) throws IOException {
+      delegate.write(out, value);
+    }
+
+    @Override
+    public EsNote read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+      EsNote note = new EsNote(new Point2D.Float(), null);
+      // Same defaults as the reflective adapter (which skipped the field initializers).
+      note.parentID = 0;
+      note.strokeWidth = 0;
+      note.color = null;
+      in.beginObject();
+      while (in.hasNext()) {
+        switch (in.nextName()) {
+          case "modifiedAuthor":
+            note.modifiedAuthor = JsonBinding.string(in);
+            break;
+          case "author":
+            note.author = JsonBinding.string(in);
+            break;
+          case "seenBy":
+            note.seenBy = JsonBinding.string(in);
+            break;
+          case "modifiedAuthorDisplayName":
+            note.modifiedAuthorDisplayName = JsonBinding.string(in);
+            break;
+          case "authorDisplayName":
+            note.authorDisplayName = JsonBinding.string(in);
+            break;
+          case "content":
+            note.content = JsonBinding.string(in);
+            break;
+          case "dashPattern":
+            note.dashPattern = JsonBinding.string(in);
+            break;
+          case "originalContent":
+            note.originalContent = JsonBinding.string(in);
+            break;
+          case "displayID":
+            note.displayID = JsonBinding.integer(in, note.displayID);
+            break;
+          case "id":
+            note.id = JsonBinding.integer(in, note.id);
+            break;
+          case "pageNumber":
+            note.pageNumber = JsonBinding.integer(in, note.pageNumber);
+            break;
+          case "parentID":
+            note.parentID = JsonBinding.integer(in, note.parentID);
+            break;
+          case "linkID":
+            note.linkID = JsonBinding.integer(in, note.linkID);
+            break;
+          case "checked":
+            note.checked = JsonBinding.bool(in, note.checked);
+            break;
+          case "checkable":
+            note.checkable = JsonBinding.bool(in, note.checkable);
+            break;
+          case "tx":
+            note.tx = JsonBinding.number(in, note.tx);
+            break;
+          case "ty":
+            note.ty = JsonBinding.number(in, note.ty);
+            break;
+          case "strokeWidth":
+            note.strokeWidth = JsonBinding.number(in, note.strokeWidth);
+            break;
+          case "anchor.x":
+            note.anchorX = JsonBinding.number(in, note.anchorX);
+            break;
+          case "anchor.y":
+            note.anchorY = JsonBinding.number(in, note.anchorY);
+            break;
+          case "position.x":
+            note.positionX = JsonBinding.number(in, note.positionX);
+            break;
+          case "position.y":
+            note.positionY = JsonBinding.number(in, note.positionY);
+            break;
+          case "created":
+            note.created = JsonBinding.value(in, gson, Date.class);
+            break;
+          case "modified":
+            note.modified = JsonBinding.value(in, gson, Date.class);
+            break;
+          case "path":
+            note.path = JsonBinding.value(in, gson, Path2D.Float.class);
+            break;
+          case "color":
+            note.color = JsonBinding.value(in, gson, CmykColor.class);
+            break;
+          case "replies":
+            note.replies = JsonBinding.value(in, gson, REPLIES);
+            break;
+          default:
+            in.skipValue();
+        }
+      }
+      in.endObject();
+      return note;
+    }
+
+  }
+
   /*
    * Other classes
    */
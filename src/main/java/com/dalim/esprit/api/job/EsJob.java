@@ -1,5 +1,6 @@
 package com.dalim.esprit.api.job;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -11,7 +12,11 @@ import com.dalim.esprit.api.EsApprover;
 import com.dalim.esprit.api.EsObject;
 import com.dalim.esprit.api.EsReferenceable;
 import com.dalim.esprit.api.EsStatus;
+import com.dalim.esprit.api.JsonBinding;
 import com.dalim.esprit.api.folder.EsFolder;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 
 public class EsJob extends EsObject {
   private String customerName, creationUser, jobWorkflow, documentWorkflow, projectTemplate, lastModificationUser, description, XMP, colorSpaceName, viewingCondition;
@@ -22,6 +27,10 @@ public class EsJob extends EsObject {
   private List<EsRole> roles;
   private List<EsDeadline> deadlines = new ArrayList<>();
   private List<EsApprover.ListOf> approvals = new ArrayList<>();
+  private static final TypeToken<List<ESMetadataLayout>> LAYOUTS = new TypeToken<List<ESMetadataLayout>>() {};
+  private static final TypeToken<List<EsRole>> ROLES = new TypeToken<List<EsRole>>() {};
+  private static final TypeToken<List<EsDeadline>> DEADLINES = new TypeToken<List<EsDeadline>>() {};
+  private static final TypeToken<List<EsApprover.ListOf>> APPROVALS = new TypeToken<List<EsApprover.ListOf>>() {};
 
 
   public List<EsApprover.ListOf> getApprovals() {
@@ -134,6 +143,80 @@ public class EsJob extends EsObject {
     return roles;
   }
 
+  @Override
+  protected boolean readJson(String member, JsonReader in, Gson gson) throws IOException {
+    switch (member) {
+      case "customerName":
+        customerName = JsonBinding.string(in);
+        return true;
+      case "creationUser":
+        creationUser = JsonBinding.string(in);
+        return true;
+      case "jobWorkflow":
+        jobWorkflow = JsonBinding.string(in);
+        return true;
+      case "documentWorkflow":
+        documentWorkflow = JsonBinding.string(in);
+        return true;
+      case "projectTemplate":
+        projectTemplate = JsonBinding.string(in);
+        return true;
+      case "lastModificationUser":
+        lastModificationUser = JsonBinding.string(in);
+        return true;
+      case "description":
+        description = JsonBinding.string(in);
+        return true;
+      case "XMP":
+        XMP = JsonBinding.string(in);
+        return true;
+      case "colorSpaceName":
+        colorSpaceName = JsonBinding.string(in);
+        return true;
+      case "viewingCondition":
+        viewingCondition = JsonBinding.string(in);
+        return true;
+      case "reversedView":
+        reversedView = JsonBinding.bool(in, reversedView);
+        return true;
+      case "exportAsRSS":
+        exportAsRSS = JsonBinding.bool(in, exportAsRSS);
+        return true;
+      case "active":
+        active = JsonBinding.bool(in, active);
+        return true;
+      case "trimmedWidth":
+        trimmedWidth = JsonBinding.number(in, trimmedWidth);
+        return true;
+      case "trimmedHeight":
+        trimmedHeight = JsonBinding.number(in, trimmedHeight);
+        return true;
+      case "priority":
+        priority = JsonBinding.integer(in, priority);
+        return true;
+      case "projectTemplateID":
+        projectTemplateID = JsonBinding.integer(in, projectTemplateID);
+        return true;
+      case "customerID":
+        customerID = JsonBinding.integer(in, customerID);
+        return true;
+      case "metadataLayout":
+        metadataLayout = JsonBinding.value(in, gson, LAYOUTS);
+        return true;
+      case "roles":
+        roles = JsonBinding.value(in, gson, ROLES);
+        return true;
+      case "deadlines":
+        deadlines = JsonBinding.value(in, gson, DEADLINES);
+        return true;
+      case "approvals":
+        approvals = JsonBinding.value(in, gson, APPROVALS);
+        return true;
+      default:
+        return super.readJson(member, in, gson);
+    }
+  }
+
 
 
   public static class EsRole {
@@ -1,11 +1,19 @@
 package com.dalim.esprit.api.production;
 
 import java.math.BigDecimal;
+import java.time.DateTimeException;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -37,6 +45,8 @@ public class EsSqlResult {
 
   private List<Header> headers = new ArrayList<>();
   private List<Object[]> objectList = new ArrayList<>();
+  private transient Map<Header, Integer> index;
+  private transient Columns columns;
 
   public List<Object[]> getObjectList() {
     return objectList;
@@ -48,7 +58,36 @@ public class EsSqlResult {
 
   public String toTable(String delimiter) {
     return new StringBuilder(headers.stream().map(h -> "[" + h.getTable() + "][" + h.type + "]" + h.getAlias()).collect(Collectors.joining(delimiter))).append("\n")
-        .append(getObjectList().stream().map(row -> headers.stream().map(h -> h.toString(row[headers.indexOf(h)])).collect(Collectors.joining(delimiter))).collect(Collectors.joining("\n"))).toString();
+        .append(getObjectList().stream().map(row -> headers.stream().map(h -> h.toString(row[indexOf(h)])).collect(Collectors.joining(delimiter))).collect(Collectors.joining("\n"))).toString();
+  }
+
+  /**
+   * The column index of the header - O(1) unlike headers.indexOf (the index is built once).
+   * 
+   * @param header
+   * @return the index or -1 if the header is not in this result.
+   */
+  public int indexOf(Header header) {
+    Map<Header, Integer> map = index;
+    if (map == null) {
+      map = new HashMap<>();
+      for (int i = 0; i < headers.size(); i++) {
+        map.putIfAbsent(headers.get(i), i);
+      }
+      index = map;
+    }
+    return map.getOrDefault(header, -1);
+  }
+
+  /**
+   * A columnar, primitive typed copy of this result - built once (on the first call) and cached.
+   * Scanning the columns does not allocate per cell.
+   * 
+   * @return the columns of this result.
+   */
+  public Columns getColumns() {
+    Columns c = columns;
+    return c == null ? columns = new Columns(this) : c;
   }
 
   public int getLength() {
@@ -124,20 +163,216 @@ public class EsSqlResult {
 
     @SuppressWarnings("unchecked")
     public <T> T getValueByHeader(Header header) {
-      return (T) header.toObject(objects[headers.indexOf(header)], header.getJavaType());
+      return (T) header.toObject(objects[indexOf(header)], header.getJavaType());
     }
 
 
   }
 
+  /**
+   * <p>
+   * Columnar storage for a result: int, float and date (epoch milliseconds) columns are primitive
+   * arrays, booleans and nulls are bitsets and strings are dictionary encoded.
+   * 
+   * <p>
+   * {@code
+   * Columns columns = result.getColumns();
+   * int col = columns.indexOf("documentName");
+   * for (int row = 0; row < columns.getLength(); row++) { columns.getString(col, row) ... }
+   * }
+   * 
+   */
+  public static class Columns {
+    private final List<Header> headers;
+    private final Map<String, Integer> aliases = new HashMap<>();
+    private final int length;
+    private final Object[] data;
+    private final BitSet[] nulls;
+    private final String[][] dictionaries;
+
+    private Columns(EsSqlResult result) {
+      this.headers = new ArrayList<>(result.headers);
+      this.length = result.objectList.size();
+      this.data = new Object[headers.size()];
+      this.nulls = new BitSet[headers.size()];
+      this.dictionaries = new String[headers.size()][];
+      for (int c = 0; c < headers.size(); c++) {
+        aliases.putIfAbsent(headers.get(c).getAlias(), c);
+        build(c, result.objectList);
+      }
+    }
+
+    private void build(int c, List<Object[]> rows) {
+      Header header = headers.get(c);
+      Class<?> type = header.getJavaType();
+      BitSet isNull = nulls[c] = new BitSet(length);
+      if (type.equals(int.class)) {
+        int[] values = new int[length];
+        for (int r = 0; r < length; r++) {
+          Object o = rows.get(r)[c];
+          if (o instanceof Number) {
+            values[r] = ((Number) o).intValue();
+          } else {
+            Integer v = header.toObject(o, int.class);
+            if (v == null) {
+              isNull.set(r);
+            } else {
+              values[r] = v;
+            }
+          }
+        }
+        data[c] = values;
+      } else if (type.equals(float.class)) {
+        float[] values = new float[length];
+        for (int r = 0; r < length; r++) {
+          Object o = rows.get(r)[c];
+          if (o instanceof Number) {
+            values[r] = ((Number) o).floatValue();
+          } else {
+            Float v = header.toObject(o, float.class);
+            if (v == null) {
+              isNull.set(r);
+            } else {
+              values[r] = v;
+            }
+          }
+        }
+        data[c] = values;
+      } else if (type.equals(Date.class)) {
+        long[] values = new long[length];
+        for (int r = 0; r < length; r++) {
+          Date v = header.toObject(rows.get(r)[c], Date.class);
+          if (v == null) {
+            isNull.set(r);
+          } else {
+            values[r] = v.getTime();
+          }
+        }
+        data[c] = values;
+      } else if (type.equals(Boolean.class)) {
+        BitSet values = new BitSet(length);
+        for (int r = 0; r < length; r++) {
+          Boolean v = header.toObject(rows.get(r)[c], Boolean.class);
+          if (v == null) {
+            isNull.set(r);
+          } else {
+            values.set(r, v);
+          }
+        }
+        data[c] = values;
+      } else {
+        int[] codes = new int[length];
+        Map<String, Integer> dictionary = new HashMap<>();
+        for (int r = 0; r < length; r++) {
+          Object o = rows.get(r)[c];
+          if (o == null) {
+            isNull.set(r);
+          } else {
+            codes[r] = dictionary.computeIfAbsent(o.toString(), k -> dictionary.size());
+          }
+        }
+        String[] values = new String[dictionary.size()];
+        dictionary.forEach((k, v) -> values[v] = k);
+        dictionaries[c] = values;
+        data[c] = codes;
+      }
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    public List<Header> getHeaders() {
+      return headers;
+    }
+
+    /**
+     * @param alias of the column.
+     * @return the column index or -1 if there is no column with the alias.
+     */
+    public int indexOf(String alias) {
+      return aliases.getOrDefault(alias, -1);
+    }
+
+    public boolean isNull(int column, int row) {
+      return nulls[column].get(row);
+    }
+
+    /**
+     * @return the value (0 for null).
+     */
+    public int getInt(int column, int row) {
+      return typed(column, int.class, int[].class)[row];
+    }
+
+    /**
+     * @return the value (0 for null).
+     */
+    public float getFloat(int column, int row) {
+      return typed(column, float.class, float[].class)[row];
+    }
+
+    /**
+     * @return the date as epoch milliseconds (0 for null).
+     */
+    public long getEpochMillis(int column, int row) {
+      return typed(column, Date.class, long[].class)[row];
+    }
+
+    /**
+     * @return the value (false for null).
+     */
+    public boolean getBoolean(int column, int row) {
+      return typed(column, Boolean.class, BitSet.class).get(row);
+    }
+
+    /**
+     * @return the value (or null).
+     */
+    public String getString(int column, int row) {
+      int[] codes = typed(column, String.class, int[].class);
+      return isNull(column, row) ? null : dictionaries[column][codes[row]];
+    }
+
+    /**
+     * The distinct values of a String column - the codes index into this array.
+     * 
+     * @param column
+     * @return the dictionary.
+     */
+    public String[] getDictionary(int column) {
+      typed(column, String.class, int[].class);
+      return dictionaries[column];
+    }
+
+    private <A> A typed(int column, Class<?> type, Class<A> array) {
+      Header header = headers.get(column);
+      if (!header.getJavaType().equals(type)) {
+        throw new RuntimeException("Requested class [" + type + "] does not match [" + header.type + "].");
+      }
+      return array.cast(data[column]);
+    }
+
+  }
+
   public static class Header {
     public enum DataType {
       B, I, F, DT, D, T, IM
     }
 
+    /**
+     * The formats Esprit returns dates in - tried before falling back to the (slow) natural language
+     * parser. Formatters are immutable so these are shared.
+     */
+    private static final DateTimeFormatter[] DATE_FORMATS = {DateTimeFormatter.ISO_OFFSET_DATE_TIME, DateTimeFormatter.ISO_LOCAL_DATE_TIME,
+        new DateTimeFormatterBuilder().append(DateTimeFormatter.ISO_LOCAL_DATE).appendLiteral(' ').append(DateTimeFormatter.ISO_LOCAL_TIME).optionalStart().appendOffset("+HH:mm", "Z").optionalEnd().toFormatter(),
+        DateTimeFormatter.ISO_LOCAL_DATE};
+
     private String name, alias;
     private Table table;
     private DataType type;
+    // The (1 based) index of the last format that matched - values in a column share a format.
+    private transient volatile int dateFormat = 0;
 
     public String getName() {
       return name;
@@ -215,8 +450,19 @@ public class EsSqlResult {
         return (T) o.toString();
       }
       if (clazz.equals(Date.class)) {
+        String value = o.toString();
+        int last = dateFormat;
+        Date date = last > 0 ? parseDate(DATE_FORMATS[last - 1], value) : null;
+        for (int i = 0; date == null && i < DATE_FORMATS.length; i++) {
+          if (i != last - 1 && (date = parseDate(DATE_FORMATS[i], value)) != null) {
+            dateFormat = i + 1;
+          }
+        }
+        if (date != null) {
+          return (T) date;
+        }
         Parser parser = new Parser();
-        List<DateGroup> groups = parser.parse(o.toString());
+        List<DateGroup> groups = parser.parse(value);
         for (DateGroup group : groups) {
           List<Date> dates = group.getDates();
           if (dates.size() > 0) {
@@ -228,6 +474,21 @@ public class EsSqlResult {
       return null;
     }
 
+    private static Date parseDate(DateTimeFormatter format, String value) {
+      try {
+        TemporalAccessor parsed = format.parse(value);
+        if (parsed.isSupported(ChronoField.OFFSET_SECONDS)) {
+          return Date.from(OffsetDateTime.from(parsed).toInstant());
+        }
+        if (parsed.isSupported(ChronoField.HOUR_OF_DAY)) {
+          return Date.from(LocalDateTime.from(parsed).atZone(ZoneId.systemDefault()).toInstant());
+        }
+        return Date.from(LocalDate.from(parsed).atStartOfDay(ZoneId.systemDefault()).toInstant());
+      } catch (DateTimeException e) {
+        return null;
+      }
+    }
+
     @Override
     public int hashCode() {
       final int prime = 31;
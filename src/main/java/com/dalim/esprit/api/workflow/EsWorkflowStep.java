@@ -1,5 +1,6 @@
 package com.dalim.esprit.api.workflow;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -34,6 +35,20 @@ public class EsWorkflowStep {
     return ended;
   }
 
+  /**
+   * @return the started date as a java.time Instant (if there is one).
+   */
+  public Optional<Instant> getStartedInstant() {
+    return Optional.ofNullable(started).map(Date::toInstant);
+  }
+
+  /**
+   * @return the ended date as a java.time Instant (if there is one).
+   */
+  public Optional<Instant> getEndedInstant() {
+    return Optional.ofNullable(ended).map(Date::toInstant);
+  }
+
   public int getStepID() {
     return stepID;
   }
@@ -0,0 +1,541 @@
+package org.keeber.esprit;
+
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.keeber.esprit.EspritAPI.ApiResponse;
+import org.keeber.esprit.EspritAPI.EspritConnectionException;
+
+import com.dalim.esprit.api.EsBase;
+import com.dalim.esprit.api.EsClass;
+import com.dalim.esprit.api.EsClassable;
+import com.dalim.esprit.api.EsObject;
+import com.dalim.esprit.api.EsReferenceable;
+import com.dalim.esprit.api.EsStatus;
+import com.dalim.esprit.api.EsStream;
+import com.dalim.esprit.api.EsXMP;
+import com.dalim.esprit.api.admin.EsLoginInformation;
+import com.dalim.esprit.api.admin.EsMethodList;
+import com.dalim.esprit.api.admin.EsVersion;
+import com.dalim.esprit.api.customer.EsCustomer;
+import com.dalim.esprit.api.directory.EsDirectoryObject;
+import com.dalim.esprit.api.directory.EsGroup;
+import com.dalim.esprit.api.directory.EsRoles;
+import com.dalim.esprit.api.directory.EsUser;
+import com.dalim.esprit.api.directory.EsUserProfiles;
+import com.dalim.esprit.api.document.EsApprovalStatus;
+import com.dalim.esprit.api.document.EsDocument;
+import com.dalim.esprit.api.document.EsDocumentWorkflow;
+import com.dalim.esprit.api.document.EsNote;
+import com.dalim.esprit.api.folder.EsFolder;
+import com.dalim.esprit.api.job.EsJob;
+import com.dalim.esprit.api.production.EsApproval;
+import com.dalim.esprit.api.production.EsColorSpace;
+import com.dalim.esprit.api.production.EsProjectTemplate;
+import com.dalim.esprit.api.production.EsSmartViewResult;
+import com.dalim.esprit.api.production.EsSqlResult;
+import com.dalim.esprit.api.production.EsViewingCondition;
+import com.dalim.esprit.api.production.EsWorkflow;
+import com.dalim.esprit.api.workflow.EsExportedWorkflow;
+import com.dalim.esprit.api.workflow.EsWorkflowStatus;
+import com.dalim.esprit.api.workflow.EsWorkflowStep;
+import com.google.gson.JsonObject;
+
+/**
+ * <p>
+ * The asynchronous view of an {@link EspritAPI} instance - obtained with {@link EspritAPI#async()}.
+ * 
+ * <p>
+ * The structure mirrors the API exactly: "document.get" is at api.async().document.get(...) and
+ * returns a CompletableFuture of the same ApiResponse the blocking call returns. Transport failures
+ * complete the future exceptionally with an {@link EspritConnectionException}.
+ * 
+ * <p>
+ * {@code
+ * api.async().document.get(EsRef.from(90988900), false).thenAccept(response -> ...);
+ * }
+ * 
+ * <p>
+ * Calls run on a bounded executor - by default a daemon pool of 8 threads (or fewer when the
+ * instance's {@link ConnectionPool} has a lower per-host limit - a call beyond that would only wait
+ * for a connection anyway) - so hundreds of in-flight requests queue rather than each pinning a
+ * thread.
+ * 
+ */
+public class AsyncEspritAPI {
+  private final EspritAPI api;
+  private final Executor executor;
+  private final ExecutorService owned;
+
+  protected AsyncEspritAPI(EspritAPI api) {
+    this.api = api;
+    AtomicInteger count = new AtomicInteger();
+    this.executor = this.owned = Executors.newFixedThreadPool(Math.min(8, api.getConnectionPool().getMaxPerHost()), r -> {
+      Thread t = new Thread(r, "esprit-async-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  protected AsyncEspritAPI(EspritAPI api, Executor executor) {
+    this.api = api;
+    this.executor = executor;
+    this.owned = null;
+  }
+
+  public final Admin admin = new Admin();
+
+  public final Customer customer = new Customer();
+
+  public final Directory directory = new Directory();
+
+  public final Document document = new Document();
+
+  public final Job job = new Job();
+
+  public final Folder folder = new Folder();
+
+  public final Production production = new Production();
+
+  public final Metadata metadata = new Metadata();
+
+  public final Monitoring monitoring = new Monitoring();
+
+  public final Workflow workflow = new Workflow();
+
+  /**
+   * Stops the default executor (when this view owns it) - calls already queued are abandoned.
+   */
+  public void shutdown() {
+    if (owned != null) {
+      owned.shutdownNow();
+    }
+  }
+
+  @FunctionalInterface
+  private interface Call<T> {
+    ApiResponse<T> call() throws EspritConnectionException;
+  }
+
+  private <T> CompletableFuture<ApiResponse<T>> submit(Call<T> call) {
+    CompletableFuture<ApiResponse<T>> future = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        try {
+          future.complete(call.call());
+        } catch (EspritConnectionException | RuntimeException e) {
+          future.completeExceptionally(e);
+        }
+      });
+    } catch (RuntimeException e) {
+      // Rejected by the executor.
+      future.completeExceptionally(new EspritConnectionException("ASYNC Rejected.", e));
+    }
+    return future;
+  }
+
+  /**
+   * The async "admin.*" API methods - see {@link EspritAPI.Admin}.
+   *
+   */
+  public final class Admin {
+
+    public CompletableFuture<ApiResponse<EsVersion>> getVersion() {
+      return submit(() -> api.admin.getVersion());
+    }
+
+    public CompletableFuture<ApiResponse<EsMethodList>> getMethodList() {
+      return submit(() -> api.admin.getMethodList());
+    }
+
+    public CompletableFuture<ApiResponse<EsLoginInformation>> getLoginInformation() {
+      return submit(() -> api.admin.getLoginInformation());
+    }
+
+  }
+
+  /**
+   * The async "customer.*" API methods - see {@link EspritAPI.Customer}.
+   *
+   */
+  public final class Customer {
+
+    public CompletableFuture<ApiResponse<EsCustomer>> get(EsReferenceable ref, boolean withXMP) {
+      return submit(() -> api.customer.get(ref, withXMP));
+    }
+
+    public CompletableFuture<ApiResponse<EsObject>> create(EsCustomer.CreationParams params) {
+      return submit(() -> api.customer.create(params));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> edit(EsCustomer.EditParams params) {
+      return submit(() -> api.customer.edit(params));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> delete(EsReferenceable ref) {
+      return submit(() -> api.customer.delete(ref));
+    }
+
+  }
+
+  /**
+   * The async "directory.*" API methods - see {@link EspritAPI.Directory}.
+   *
+   */
+  public final class Directory {
+
+    public CompletableFuture<ApiResponse<EsRoles>> roles() {
+      return submit(() -> api.directory.roles());
+    }
+
+    public CompletableFuture<ApiResponse<EsUserProfiles>> userProfiles() {
+      return submit(() -> api.directory.userProfiles());
+    }
+
+    public CompletableFuture<ApiResponse<EsDirectoryObject.ListOf>> search(EspritAPI.Directory.SearchParams params) {
+      return submit(() -> api.directory.search(params));
+    }
+
+    public CompletableFuture<ApiResponse<EsUser>> getUser(String ID) {
+      return submit(() -> api.directory.getUser(ID));
+    }
+
+    public CompletableFuture<ApiResponse<EsUser>> createUser(EsUser.CreationParams params) {
+      return submit(() -> api.directory.createUser(params));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> deleteUser(String ID) {
+      return submit(() -> api.directory.deleteUser(ID));
+    }
+
+    public CompletableFuture<ApiResponse<EsUser>> editUser(EsUser.EditParams params) {
+      return submit(() -> api.directory.editUser(params));
+    }
+
+    public CompletableFuture<ApiResponse<EsGroup>> getGroup(String ID) {
+      return submit(() -> api.directory.getGroup(ID));
+    }
+
+    public CompletableFuture<ApiResponse<EsGroup>> createGroup(String orgUnit, String name, Optional<String> description, Optional<List<String>> userList) {
+      return submit(() -> api.directory.createGroup(orgUnit, name, description, userList));
+    }
+
+    public CompletableFuture<ApiResponse<EsGroup>> addUserToGroup(String ID, List<String> userList) {
+      return submit(() -> api.directory.addUserToGroup(ID, userList));
+    }
+
+    public CompletableFuture<ApiResponse<EsGroup>> removeUserFromGroup(String ID, List<String> userList) {
+      return submit(() -> api.directory.removeUserFromGroup(ID, userList));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> deleteGroup(String ID) {
+      return submit(() -> api.directory.deleteGroup(ID));
+    }
+
+    public CompletableFuture<ApiResponse<EsDirectoryObject.ListOf>> list(EsDirectoryObject root) {
+      return submit(() -> api.directory.list(root));
+    }
+
+  }
+
+  /**
+   * The async "document.*" API methods - see {@link EspritAPI.Document}.
+   *
+   */
+  public final class Document {
+
+    public CompletableFuture<ApiResponse<EsDocument>> get(EsReferenceable ref, boolean withXMP) {
+      return submit(() -> api.document.get(ref, withXMP));
+    }
+
+    public CompletableFuture<ApiResponse<InputStream>> get(int documentID, EsStream type) {
+      return submit(() -> api.document.get(documentID, type));
+    }
+
+    public CompletableFuture<ApiResponse<InputStream>> get(EsDocument document, EsStream type) {
+      return submit(() -> api.document.get(document, type));
+    }
+
+    public CompletableFuture<ApiResponse<Long>> download(int documentID, EsStream type, WritableByteChannel target) {
+      return submit(() -> api.document.download(documentID, type, target));
+    }
+
+    public CompletableFuture<ApiResponse<Long>> download(int documentID, EsStream type, WritableByteChannel target, EspritAPI.Progress progress) {
+      return submit(() -> api.document.download(documentID, type, target, progress));
+    }
+
+    public CompletableFuture<ApiResponse<Long>> download(int documentID, EsStream type, Path target) {
+      return submit(() -> api.document.download(documentID, type, target));
+    }
+
+    public CompletableFuture<ApiResponse<Long>> download(int documentID, EsStream type, Path target, boolean fsync, EspritAPI.Progress progress) {
+      return submit(() -> api.document.download(documentID, type, target, fsync, progress));
+    }
+
+    public CompletableFuture<ApiResponse<InputStream>> noteReport(EsReferenceable ref, boolean xml, boolean allRevision) {
+      return submit(() -> api.document.noteReport(ref, xml, allRevision));
+    }
+
+    public CompletableFuture<ApiResponse<InputStream>> historyReport(EsReferenceable ref, boolean xml, boolean allRevision) {
+      return submit(() -> api.document.historyReport(ref, xml, allRevision));
+    }
+
+    public CompletableFuture<ApiResponse<EsObject>> create(EsDocument.CreationParams params) {
+      return submit(() -> api.document.create(params));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> register(EsDocument.RegisterParams params) {
+      return submit(() -> api.document.register(params));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> edit(EsDocument.EditParams params) {
+      return submit(() -> api.document.edit(params));
+    }
+
+    public CompletableFuture<ApiResponse<Boolean>> upload(InputStream payload, Optional<Long> length, String fileName, EspritAPI.Document.UploadMetadata metadata) {
+      return submit(() -> api.document.upload(payload, length, fileName, metadata));
+    }
+
+    public CompletableFuture<ApiResponse<Boolean>> upload(Path file, EspritAPI.Document.UploadMetadata metadata) {
+      return submit(() -> api.document.upload(file, metadata));
+    }
+
+    public CompletableFuture<ApiResponse<Boolean>> upload(Path file, String fileName, EspritAPI.Document.UploadMetadata metadata) {
+      return submit(() -> api.document.upload(file, fileName, metadata));
+    }
+
+    public CompletableFuture<ApiResponse<Boolean>> upload(Path file, String fileName, EspritAPI.Document.UploadMetadata metadata, EspritAPI.Progress progress) {
+      return submit(() -> api.document.upload(file, fileName, metadata, progress));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> delete(EsReferenceable ref) {
+      return submit(() -> api.document.delete(ref));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> approve(EsReferenceable ref, Optional<String> comment) {
+      return submit(() -> api.document.approve(ref, comment));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> reject(EsReferenceable ref, Optional<String> comment) {
+      return submit(() -> api.document.reject(ref, comment));
+    }
+
+    public CompletableFuture<ApiResponse<EsApprovalStatus>> approvalStatus(EsReferenceable ref) {
+      return submit(() -> api.document.approvalStatus(ref));
+    }
+
+    public CompletableFuture<ApiResponse<EsNote.ListOf>> getNotes(EsReferenceable ref, Optional<Integer> pageNumber) {
+      return submit(() -> api.document.getNotes(ref, pageNumber));
+    }
+
+    public CompletableFuture<ApiResponse<EsNote.EsNoteResponse>> addNote(EsReferenceable ref, EsNote note, Optional<Integer> pageNumber) {
+      return submit(() -> api.document.addNote(ref, note, pageNumber));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> editNote(EsReferenceable ref, int noteID, EsNote note) {
+      return submit(() -> api.document.editNote(ref, noteID, note));
+    }
+
+    public CompletableFuture<ApiResponse<EsXMP>> getXMP(EsReferenceable ref) {
+      return submit(() -> api.document.getXMP(ref));
+    }
+
+    public CompletableFuture<ApiResponse<EsDocumentWorkflow.ListOf>> getWFLs(EsReferenceable ref) {
+      return submit(() -> api.document.getWFLs(ref));
+    }
+
+    public CompletableFuture<ApiResponse<String>> dialogueView(List<String> references, boolean arePaths, Optional<String> closeURL) {
+      return submit(() -> api.document.dialogueView(references, arePaths, closeURL));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> deleteNote(EsReferenceable ref, int noteID) {
+      return submit(() -> api.document.deleteNote(ref, noteID));
+    }
+
+  }
+
+  /**
+   * The async "job.*" API methods - see {@link EspritAPI.Job}.
+   *
+   */
+  public final class Job {
+
+    public CompletableFuture<ApiResponse<EsJob>> get(EsReferenceable ref, boolean withXMP) {
+      return submit(() -> api.job.get(ref, withXMP));
+    }
+
+    public CompletableFuture<ApiResponse<EsObject>> create(EsJob.CreationParams params) {
+      return submit(() -> api.job.create(params));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> edit(EsJob.EditParams params) {
+      return submit(() -> api.job.edit(params));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> delete(EsReferenceable ref) {
+      return submit(() -> api.job.delete(ref));
+    }
+
+    public CompletableFuture<ApiResponse<EsBase.ListOf>> getWFLs(EsReferenceable ref) {
+      return submit(() -> api.job.getWFLs(ref));
+    }
+
+    public CompletableFuture<ApiResponse<EsXMP>> getXMP(EsReferenceable ref) {
+      return submit(() -> api.job.getXMP(ref));
+    }
+
+  }
+
+  /**
+   * The async "folder.*" API methods - see {@link EspritAPI.Folder}.
+   *
+   */
+  public final class Folder {
+
+    public CompletableFuture<ApiResponse<EsFolder>> get(EsReferenceable ref) {
+      return submit(() -> api.folder.get(ref));
+    }
+
+    public CompletableFuture<ApiResponse<EsFolder>> create(EsReferenceable ref, boolean isJob, String name) {
+      return submit(() -> api.folder.create(ref, isJob, name));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> edit(EsFolder.EditParams params) {
+      return submit(() -> api.folder.edit(params));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> delete(EsReferenceable ref) {
+      return submit(() -> api.folder.delete(ref));
+    }
+
+  }
+
+  /**
+   * The async "production.*" API methods - see {@link EspritAPI.Production}.
+   *
+   */
+  public final class Production {
+
+    public CompletableFuture<ApiResponse<EsColorSpace.ListOf>> colorSpaces() {
+      return submit(() -> api.production.colorSpaces());
+    }
+
+    public CompletableFuture<ApiResponse<EsObject.ListOf>> list(EsObject root) {
+      return submit(() -> api.production.list(root));
+    }
+
+    public CompletableFuture<ApiResponse<EsProjectTemplate.ListOf>> projectTemplates() {
+      return submit(() -> api.production.projectTemplates());
+    }
+
+    public CompletableFuture<ApiResponse<EsSqlResult>> executeSQL(String query) {
+      return submit(() -> api.production.executeSQL(query));
+    }
+
+    public CompletableFuture<ApiResponse<EsViewingCondition.ListOf>> viewingConditions() {
+      return submit(() -> api.production.viewingConditions());
+    }
+
+    public CompletableFuture<ApiResponse<EsWorkflow.ListOf>> workflows() {
+      return submit(() -> api.production.workflows());
+    }
+
+    public CompletableFuture<ApiResponse<EsApproval.ListOf>> toApprove(boolean reviewer, boolean approver, boolean gateKeeper) {
+      return submit(() -> api.production.toApprove(reviewer, approver, gateKeeper));
+    }
+
+    public CompletableFuture<ApiResponse<EsSmartViewResult>> smartView(String name, String... filters) {
+      return submit(() -> api.production.smartView(name, filters));
+    }
+
+    public CompletableFuture<ApiResponse<EsObject.ListOf>> search(EspritAPI.Production.SearchParams params) {
+      return submit(() -> api.production.search(params));
+    }
+
+    public CompletableFuture<ApiResponse<JsonObject>> getObjectByPath(String path) {
+      return submit(() -> api.production.getObjectByPath(path));
+    }
+
+    public CompletableFuture<ApiResponse<JsonObject>> getObject(int ID, EsClass esclass) {
+      return submit(() -> api.production.getObject(ID, esclass));
+    }
+
+  }
+
+  /**
+   * The async "metadata.*" API methods - see {@link EspritAPI.Metadata}.
+   *
+   */
+  public final class Metadata {
+
+    public CompletableFuture<ApiResponse<JsonObject>> list() {
+      return submit(() -> api.metadata.list());
+    }
+
+  }
+
+  /**
+   * The async "monitoring.*" API methods - see {@link EspritAPI.Monitoring}.
+   *
+   */
+  public final class Monitoring {
+
+    public CompletableFuture<ApiResponse<JsonObject>> activity() {
+      return submit(() -> api.monitoring.activity());
+    }
+
+  }
+
+  /**
+   * The async "workflow.*" API methods - see {@link EspritAPI.Workflow}.
+   *
+   */
+  public final class Workflow {
+
+    public CompletableFuture<ApiResponse<EsExportedWorkflow>> exportWFL(String name, boolean compressed) {
+      return submit(() -> api.workflow.exportWFL(name, compressed));
+    }
+
+    public CompletableFuture<ApiResponse<EsExportedWorkflow>> importWFL(String name, String description, String workflow) {
+      return submit(() -> api.workflow.importWFL(name, description, workflow));
+    }
+
+    public CompletableFuture<ApiResponse<EsWorkflowStep.ListOf>> get(EsClassable ref, String name) {
+      return submit(() -> api.workflow.get(ref, name));
+    }
+
+    public CompletableFuture<ApiResponse<EsWorkflowStatus>> reject(EsClassable ref, String name, int stepID, Optional<String> comment) {
+      return submit(() -> api.workflow.reject(ref, name, stepID, comment));
+    }
+
+    public CompletableFuture<ApiResponse<EsWorkflowStatus>> validate(EsClassable ref, String name, int stepID, Optional<String> comment) {
+      return submit(() -> api.workflow.validate(ref, name, stepID, comment));
+    }
+
+    public CompletableFuture<ApiResponse<EsWorkflowStatus>> stop(EsClassable ref, String name) {
+      return submit(() -> api.workflow.stop(ref, name));
+    }
+
+    public CompletableFuture<ApiResponse<EsWorkflowStatus>> start(EsClassable ref, String name) {
+      return submit(() -> api.workflow.start(ref, name));
+    }
+
+    public CompletableFuture<ApiResponse<EsWorkflowStatus>> restart(EsClassable ref, String name, Optional<Integer> stepID) {
+      return submit(() -> api.workflow.restart(ref, name, stepID));
+    }
+
+    public CompletableFuture<ApiResponse<EsStatus>> startUserAction(String name, List<Integer> IDs, List<String[]> metadata) {
+      return submit(() -> api.workflow.startUserAction(name, IDs, metadata));
+    }
+
+  }
+
+}
@@ -0,0 +1,210 @@
+package org.keeber.esprit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * <p>
+ * A bounded pool of keep-alive HTTP/1.1 connections used by the {@link EspritAPI} transport.
+ *
+ * <p>
+ * The JVM already keeps idle sockets alive for {@link HttpURLConnection} - but only when the
+ * response has been read to the end and the connection is NOT disconnected (which is what the
+ * transport used to do after every call). Connections are leased from this pool and released when
+ * the call completes: the response stream is closed (never disconnected), so the socket goes back
+ * to the JVM keep-alive cache and the next call skips the TCP and TLS handshake.
+ * Idle sockets are evicted by the JVM cache using the server's Keep-Alive timeout.
+ *
+ * <p>
+ * The default pool only adds keep-alive - it doesn't limit the number of concurrent calls. A pool
+ * created with a per-host limit bounds the connections to each host: callers block (up to the
+ * acquire timeout) once the limit is reached. The JVM caches at most "http.maxConnections" (default 5) idle sockets
+ * per host, so set that system property when raising the per-host limit beyond it.
+ *
+ * <p>
+ * All HTTPS connections from one pool share a single SSLSocketFactory so TLS sessions are resumed
+ * rather than renegotiated. A pool can be shared between several EspritAPI instances (see
+ * {@link EspritAPI#setConnectionPool(ConnectionPool)}).
+ *
+ */
+public class ConnectionPool {
+  private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+  private final int maxPerHost;
+  private long acquireTimeout = 1000 * 30;
+  private SSLSocketFactory socketFactory;
+
+  /**
+   * Create a pool without a per-host limit (the default used by every EspritAPI instance).
+   */
+  public ConnectionPool() {
+    this(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Create a pool with the given maximum number of connections per host.
+   *
+   * @param maxPerHost maximum concurrent connections to one host.
+   */
+  public ConnectionPool(int maxPerHost) {
+    if (maxPerHost < 1) {
+      throw new IllegalArgumentException("Max connections per host must be at least 1.");
+    }
+    this.maxPerHost = maxPerHost;
+  }
+
+  /**
+   * @return maximum concurrent connections to one host (Integer.MAX_VALUE when unbounded).
+   */
+  public int getMaxPerHost() {
+    return maxPerHost;
+  }
+
+  /**
+   * The number of milliseconds to wait for a free connection before failing.
+   *
+   * @param acquireTimeout (in milliseconds).
+   * @return the instance it was call on (for chaining).
+   */
+  public ConnectionPool setAcquireTimeout(long acquireTimeout) {
+    this.acquireTimeout = acquireTimeout;
+    return this;
+  }
+
+  /**
+   * The socket factory used for all HTTPS connections from this pool - the factory owns the TLS
+   * session cache so sharing it is what allows sessions to be resumed.
+   *
+   * @param socketFactory to use (null for the JVM default).
+   * @return the instance it was call on (for chaining).
+   */
+  public ConnectionPool setSSLSocketFactory(SSLSocketFactory socketFactory) {
+    this.socketFactory = socketFactory;
+    return this;
+  }
+
+  /**
+   * Size the TLS session cache of the default SSL context used by this pool.
+   *
+   * @param size maximum number of cached sessions (0 is unlimited).
+   * @param timeout session lifetime (in seconds).
+   * @return the instance it was call on (for chaining).
+   */
+  public ConnectionPool setTLSSessionCache(int size, int timeout) {
+    try {
+      SSLContext context = SSLContext.getDefault();
+      context.getClientSessionContext().setSessionCacheSize(size);
+      context.getClientSessionContext().setSessionTimeout(timeout);
+      return setSSLSocketFactory(context.getSocketFactory());
+    } catch (Exception e) {
+      throw new IllegalStateException("TLS context unavailable.", e);
+    }
+  }
+
+  /**
+   * The number of connections currently leased to the given host (for monitoring).
+   *
+   * @param url any URL on the host.
+   * @return leased connection count.
+   */
+  public int getLeased(URL url) {
+    Semaphore permits = hosts.get(key(url));
+    return permits == null ? 0 : maxPerHost - permits.availablePermits();
+  }
+
+  protected Lease lease(URL url) throws IOException {
+    Semaphore permits = hosts.computeIfAbsent(key(url), k -> new Semaphore(maxPerHost, true));
+    try {
+      if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+        throw new IOException("POOL Exhausted [" + key(url) + "][" + maxPerHost + "]");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("POOL Interrupted [" + key(url) + "]", e);
+    }
+    try {
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      if (socketFactory != null && connection instanceof HttpsURLConnection) {
+        ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+      }
+      connection.setRequestProperty("Connection", "keep-alive");
+      return new Lease(connection, permits);
+    } catch (IOException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private static String key(URL url) {
+    return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+  }
+
+  /**
+   * A connection leased from the pool - it MUST be released (or discarded) exactly once.
+   *
+   */
+  protected static class Lease {
+    private final HttpURLConnection connection;
+    private final Semaphore permits;
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private Lease(HttpURLConnection connection, Semaphore permits) {
+      this.connection = connection;
+      this.permits = permits;
+    }
+
+    protected HttpURLConnection getConnection() {
+      return connection;
+    }
+
+    /**
+     * Close the response so the socket can be reused - the JVM drains a short remainder (or closes
+     * the socket when too much is left unread). Disconnecting here would evict the socket from the
+     * keep-alive cache, so a response stream that has already been closed is left alone.
+     */
+    protected void release() {
+      if (done.compareAndSet(false, true)) {
+        try {
+          InputStream is;
+          try {
+            is = connection.getInputStream();
+          } catch (IOException e) {
+            is = connection.getErrorStream();
+          }
+          if (is != null) {
+            is.close();
+          }
+        } catch (IOException | RuntimeException e) {
+          // Already closed (and returned to the cache) or broken (and closed by the JVM).
+        } finally {
+          permits.release();
+        }
+      }
+    }
+
+    /**
+     * Close the socket - used when the connection is in an unknown state.
+     */
+    protected void discard() {
+      if (done.compareAndSet(false, true)) {
+        try {
+          connection.disconnect();
+        } finally {
+          permits.release();
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,487 @@
+package org.keeber.esprit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.keeber.esprit.EspritAPI.ApiResponse;
+import org.keeber.esprit.EspritAPI.EspritConnectionException;
+
+import com.dalim.esprit.api.EsStream;
+import com.dalim.esprit.api.document.EsDocument;
+
+/**
+ * <p>
+ * A local disk cache of document thumbnails, previews and preflight reports - see
+ * {@link EspritAPI#setContentCache(ContentCache)}.
+ *
+ * <p>
+ * Each stream is kept in its own file in the cache directory, with a single index file (written
+ * atomically, at most once a second, after entries are added or removed) so the cache survives a
+ * restart. The cache is bounded by the total size of the files - the least recently used are
+ * removed first (a file that is being read stays readable until it is closed). Hits are read
+ * straight from the file: {@link EspritAPI.Document#download(int, EsStream, WritableByteChannel)}
+ * hands the file to the target channel with FileChannel.transferTo so the bytes never pass through
+ * the heap.
+ *
+ * <p>
+ * Streams requested with a document ({@link EspritAPI.Document#get(EsDocument, EsStream)}) are
+ * keyed by the revision and modification date of the document - a newer document replaces the
+ * cached stream. Streams requested by ID alone are kept for the TTL. Concurrent misses for the same
+ * stream share one download.
+ *
+ */
+public class ContentCache {
+  private static final int INDEX_VERSION = 1;
+  /**
+   * The names of the stream files (and their temporary files) - the only files removed from the
+   * directory when they are not in the index.
+   */
+  private static final Pattern FILES = Pattern.compile("-?\\d+\\.(" + Stream.of(EsStream.values()).map(Enum::name).collect(Collectors.joining("|")) + ")\\.(\\p{XDigit}+|\\d+\\.tmp)|index\\.tmp");
+  private final Path directory, index;
+  private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, CompletableFuture<ApiResponse<?>>> loading = new ConcurrentHashMap<>();
+  private final Object saves = new Object();
+  private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+  private long maxBytes, bytes, ttl = 1000 * 60 * 10;
+  private ScheduledFuture<?> saving;
+
+  /**
+   * One daemon thread writes the (batched) index of every cache.
+   */
+  private static final ScheduledExecutorService scheduler;
+
+  static {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "ContentCache-index");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    scheduler = executor;
+  }
+
+  /**
+   * Open (or create) a cache in the given directory - the directory should only be used by one
+   * cache. Cache files that aren't in the index are removed (other files in the directory are left
+   * alone).
+   *
+   * @param directory to keep the files in.
+   * @param maxBytes maximum total size of the cached files.
+   * @throws IOException if the directory can't be created.
+   */
+  public ContentCache(Path directory, long maxBytes) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.index = directory.resolve("index");
+    this.maxBytes = maxBytes;
+    synchronized (entries) {
+      load();
+      if (evict()) {
+        save();
+      }
+    }
+  }
+
+  /**
+   * @param ttl how long a stream requested by ID alone is kept (in milliseconds - default 10
+   *        minutes).
+   * @return the instance it was call on (for chaining).
+   */
+  public ContentCache setTTL(long ttl) {
+    this.ttl = ttl;
+    return this;
+  }
+
+  /**
+   * @param maxBytes maximum total size of the cached files.
+   * @return the instance it was call on (for chaining).
+   */
+  public ContentCache setMaxBytes(long maxBytes) {
+    synchronized (entries) {
+      this.maxBytes = maxBytes;
+      if (evict()) {
+        save();
+      }
+    }
+    return this;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the total size of the cached files.
+   */
+  public long getBytes() {
+    synchronized (entries) {
+      return bytes;
+    }
+  }
+
+  /**
+   * Drop every cached stream of a document.
+   *
+   * @param documentID ID of the document.
+   */
+  public void invalidate(int documentID) {
+    synchronized (entries) {
+      boolean removed = false;
+      for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+        Entry e = i.next();
+        if (e.documentID == documentID) {
+          i.remove();
+          delete(e);
+          removed = true;
+        }
+      }
+      if (removed) {
+        save();
+      }
+    }
+  }
+
+  public void invalidate() {
+    synchronized (entries) {
+      entries.values().forEach(this::delete);
+      entries.clear();
+      save();
+    }
+  }
+
+  /**
+   * Write the index now (including the current least recently used order).
+   */
+  public void flush() {
+    // The snapshot is taken and written in order - a later snapshot is never overwritten.
+    synchronized (saves) {
+      List<Map.Entry<String, Entry>> snapshot;
+      synchronized (entries) {
+        if (saving != null) {
+          saving.cancel(false);
+          saving = null;
+        }
+        snapshot = new ArrayList<>(entries.entrySet());
+      }
+      write(snapshot);
+    }
+  }
+
+  /**
+   * The version of a document its streams are cached under.
+   *
+   * @return the version (or null if the document has neither a revision nor a modification date).
+   */
+  protected static String version(EsDocument document) {
+    if (document.getLastModificationDate() == null && document.getCurrentRevision() == null) {
+      return null;
+    }
+    return document.getCurrentRevision() + "@" + (document.getLastModificationDate() == null ? "" : document.getLastModificationDate().getTime());
+  }
+
+  protected boolean caches(EsStream type) {
+    return type != EsStream.file;
+  }
+
+  /**
+   * The cached stream - loaded (and cached) first on a miss.
+   *
+   * @param version of the document (null to use the TTL).
+   * @return the response (with the cached file, opened, as the result - the caller closes it).
+   */
+  protected ApiResponse<FileChannel> get(int documentID, EsStream type, String version, ReferenceCache.Loader<InputStream> loader) throws EspritConnectionException {
+    String key = documentID + "." + type;
+    while (true) {
+      FileChannel channel = lookup(key, version);
+      if (channel != null) {
+        hits.incrementAndGet();
+        return new ApiResponse<FileChannel>().setResult(channel);
+      }
+      // Single flight - concurrent callers for the same stream wait for the first one (other
+      // streams aren't held up).
+      CompletableFuture<ApiResponse<?>> call = new CompletableFuture<>(), running = loading.putIfAbsent(key, call);
+      if (running == null) {
+        try {
+          ApiResponse<FileChannel> cached = load(key, documentID, version, loader);
+          call.complete(cached.hasResult() ? new ApiResponse<String>().setResult(key) : cached);
+          return cached;
+        } catch (EspritConnectionException | RuntimeException e) {
+          call.completeExceptionally(e);
+          throw e;
+        } finally {
+          loading.remove(key, call);
+        }
+      }
+      ApiResponse<?> loaded = join(running);
+      if (!loaded.hasResult()) {
+        ApiResponse<FileChannel> cached = new ApiResponse<>();
+        return loaded.hasError() ? cached.setError(loaded.error()) : cached;
+      }
+      // Loaded - read it from the cache (or load it again if it is already gone).
+    }
+  }
+
+  private ApiResponse<FileChannel> load(String key, int documentID, String version, ReferenceCache.Loader<InputStream> loader) throws EspritConnectionException {
+    misses.incrementAndGet();
+    ApiResponse<InputStream> response = loader.load();
+    ApiResponse<FileChannel> cached = new ApiResponse<>();
+    if (response.hasError()) {
+      return cached.setError(response.error());
+    }
+    if (!response.hasResult()) {
+      return cached;
+    }
+    Path temp = null;
+    try (InputStream in = response.get()) {
+      temp = Files.createTempFile(directory, key + ".", ".tmp");
+      Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+      Path file = directory.resolve(key + "." + Long.toHexString(System.nanoTime()));
+      Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+      temp = null;
+      return cached.setResult(put(key, new Entry(documentID, version, file.getFileName().toString(), Files.size(file), System.currentTimeMillis())));
+    } catch (IOException e) {
+      throw new EspritConnectionException("STREAM Failed [" + key + "]", e);
+    } finally {
+      if (temp != null) {
+        try {
+          Files.deleteIfExists(temp);
+        } catch (IOException e) {
+          // Removed with the other orphans when the cache is next opened.
+        }
+      }
+    }
+  }
+
+  private static ApiResponse<?> join(CompletableFuture<ApiResponse<?>> running) throws EspritConnectionException {
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new EspritConnectionException("STREAM Interrupted [Shared load]", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof EspritConnectionException) {
+        throw (EspritConnectionException) e.getCause();
+      }
+      throw (RuntimeException) e.getCause();
+    }
+  }
+
+  /**
+   * A cached file as a stream (closing the stream closes the file).
+   */
+  protected static InputStream open(FileChannel channel) {
+    return new BufferedInputStream(Channels.newInputStream(channel));
+  }
+
+  /**
+   * Hand a cached file to a channel (the kernel copies the bytes where it can) - the file is closed
+   * afterwards.
+   *
+   * @param progress called after each block is transferred (can be null).
+   * @return the number of bytes transferred.
+   */
+  protected static long transfer(FileChannel file, WritableByteChannel target, EspritAPI.Progress progress) throws IOException {
+    try (FileChannel channel = file) {
+      long position = 0, size = channel.size();
+      while (position < size) {
+        position += channel.transferTo(position, Math.min(size - position, 1024 * 1024 * 16), target);
+        if (progress != null) {
+          progress.update(position, size);
+        }
+      }
+      return position;
+    }
+  }
+
+  /**
+   * The cached file - opened while the entry is locked so it can't be evicted (deleted) before it
+   * is open.
+   */
+  private FileChannel lookup(String key, String version) {
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (!Objects.equals(entry.version, version) || (version == null && System.currentTimeMillis() - entry.cached >= ttl)) {
+        entries.remove(key);
+        delete(entry);
+        save();
+        return null;
+      }
+      try {
+        return FileChannel.open(directory.resolve(entry.file), StandardOpenOption.READ);
+      } catch (IOException e) {
+        // Gone (or unreadable) - drop it and load it again.
+        entries.remove(key);
+        delete(entry);
+        save();
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Add an entry - and open its file (before anything can evict it).
+   */
+  private FileChannel put(String key, Entry entry) throws IOException {
+    synchronized (entries) {
+      Entry replaced = entries.put(key, entry);
+      if (replaced != null) {
+        delete(replaced);
+      }
+      bytes += entry.size;
+      FileChannel channel = FileChannel.open(directory.resolve(entry.file), StandardOpenOption.READ);
+      evict();
+      save();
+      return channel;
+    }
+  }
+
+  private boolean evict() {
+    boolean evicted = false;
+    // The most recent entry is always kept (it is about to be read).
+    for (Iterator<Entry> i = entries.values().iterator(); i.hasNext() && bytes > maxBytes && entries.size() > 1;) {
+      Entry e = i.next();
+      i.remove();
+      delete(e);
+      evicted = true;
+    }
+    return evicted;
+  }
+
+  private void delete(Entry entry) {
+    bytes -= entry.size;
+    try {
+      // A reader that has the file open keeps its bytes (on Windows the delete fails instead).
+      Files.deleteIfExists(directory.resolve(entry.file));
+    } catch (IOException e) {
+      // Removed with the other orphans when the cache is next opened.
+    }
+  }
+
+  /**
+   * Read the index - anything in the directory that isn't in the index is removed.
+   */
+  private void load() {
+    if (Files.isRegularFile(index)) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+        if (in.readInt() == INDEX_VERSION) {
+          for (int i = in.readInt(); i > 0; i--) {
+            String key = in.readUTF(), version = in.readUTF(), file = in.readUTF();
+            Entry entry = new Entry(in.readInt(), version.isEmpty() ? null : version, file, in.readLong(), in.readLong());
+            if (Files.isRegularFile(directory.resolve(file))) {
+              entries.put(key, entry);
+              bytes += entry.size;
+            }
+          }
+        }
+      } catch (IOException e) {
+        entries.clear();
+        bytes = 0;
+      }
+    }
+    Set<String> files = new HashSet<>();
+    entries.values().forEach(e -> files.add(e.file));
+    try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+      for (Path path : listing) {
+        String name = path.getFileName().toString();
+        if (FILES.matcher(name).matches() && !files.contains(name)) {
+          Files.deleteIfExists(path);
+        }
+      }
+    } catch (IOException e) {
+      // Tried again when the cache is next opened.
+    }
+  }
+
+  /**
+   * Write the index soon - the changes of the next second are written together (call with the
+   * entries lock held).
+   */
+  private void save() {
+    if (saving == null) {
+      saving = scheduler.schedule(this::flush, 1, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Write the index (eldest entry first) to a temporary file and move it into place.
+   */
+  private void write(List<Map.Entry<String, Entry>> snapshot) {
+    Path temp = index.resolveSibling("index.tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(INDEX_VERSION);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<String, Entry> e : snapshot) {
+          out.writeUTF(e.getKey());
+          out.writeUTF(e.getValue().version == null ? "" : e.getValue().version);
+          out.writeUTF(e.getValue().file);
+          out.writeInt(e.getValue().documentID);
+          out.writeLong(e.getValue().size);
+          out.writeLong(e.getValue().cached);
+        }
+      }
+      Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // The cache still works - only the next restart loses entries.
+    }
+  }
+
+  private static class Entry {
+    private final int documentID;
+    private final String version, file;
+    private final long size, cached;
+
+    private Entry(int documentID, String version, String file, long size, long cached) {
+      this.documentID = documentID;
+      this.version = version;
+      this.file = file;
+      this.size = size;
+      this.cached = cached;
+    }
+
+  }
+
+}
@@ -0,0 +1,437 @@
+package org.keeber.esprit;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.keeber.esprit.EspritAPI.ApiRequest;
+import org.keeber.esprit.EspritAPI.ApiResponse;
+import org.keeber.esprit.EspritAPI.EspritConnectionException;
+
+import com.dalim.esprit.api.EsObject;
+import com.dalim.esprit.api.customer.EsCustomer;
+import com.dalim.esprit.api.document.EsDocument;
+import com.dalim.esprit.api.job.EsJob;
+
+/**
+ * <p>
+ * An opt-in read through cache of documents, jobs and customers ("document.get", "job.get" and
+ * "customer.get") keyed by ID - see {@link EspritAPI#setEntityCache(EntityCache)}.
+ *
+ * <p>
+ * Entries live for at most the TTL and the cache is bounded by both the number of entries and
+ * their estimated weight (the least recently used entries are evicted first). The client's own
+ * edit, delete, approve, reject and workflow calls drop the objects they change - deleting a job
+ * also drops its documents and an upload drops the documents of its job (it may be a new
+ * revision). Changes made by other clients are only noticed through the TTL or the optional
+ * {@link Revalidator}.
+ *
+ * <p>
+ * The cached responses (and results) are shared by every caller so they must not be modified.
+ * Calls that reference an object by path are only cached when the path can be resolved to an ID
+ * (see {@link PathCache}).
+ *
+ */
+public class EntityCache {
+  private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), invalidations = new AtomicLong();
+  /**
+   * Bumped (per type and ID, and per type for changes by path) on every change - a load that a
+   * change overlapped is not cached. Only kept while loads are running.
+   */
+  private final Map<String, Long> generations = new HashMap<>();
+  private long generation;
+  private int loads;
+  private final Object revalidation = new Object();
+  private long ttl = 1000 * 60, weight, maxWeight = 1024 * 1024 * 64, revalidateAfter;
+  private int maxEntries = 10000;
+  private Revalidator revalidator;
+
+  /**
+   * Checks the modification dates of cached objects in bulk (eg: with a single
+   * "production.executeSQL" query against the server's own schema).
+   *
+   */
+  public interface Revalidator {
+
+    /**
+     * @param type of the objects ("document", "job" or "customer") - called once per type.
+     * @param modified the cached objects (by ID) with their last modification date (may be null).
+     * @return the IDs of the objects that changed (or no longer exist).
+     * @throws EspritConnectionException
+     */
+    Collection<Integer> changed(String type, Map<Integer, Date> modified) throws EspritConnectionException;
+
+  }
+
+  /**
+   * @param ttl the longest time an object is cached (in milliseconds - default 1 minute).
+   * @return the instance it was call on (for chaining).
+   */
+  public EntityCache setTTL(long ttl) {
+    this.ttl = ttl;
+    return this;
+  }
+
+  /**
+   * @param maxEntries maximum number of cached objects (default 10,000).
+   * @return the instance it was call on (for chaining).
+   */
+  public EntityCache setMaxEntries(int maxEntries) {
+    synchronized (entries) {
+      this.maxEntries = maxEntries;
+      evict();
+    }
+    return this;
+  }
+
+  /**
+   * @param maxWeight maximum estimated size of the cached objects (in bytes - default 64MB).
+   * @return the instance it was call on (for chaining).
+   */
+  public EntityCache setMaxWeight(long maxWeight) {
+    synchronized (entries) {
+      this.maxWeight = maxWeight;
+      evict();
+    }
+    return this;
+  }
+
+  /**
+   * Check entries older than the given age with the revalidator (all of the due entries in one
+   * call) instead of trusting them for the whole TTL.
+   *
+   * @param after age at which entries are checked (in milliseconds).
+   * @param revalidator to check with (null to disable).
+   * @return the instance it was call on (for chaining).
+   */
+  public EntityCache setRevalidator(long after, Revalidator revalidator) {
+    this.revalidateAfter = after;
+    this.revalidator = revalidator;
+    return this;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return entries dropped because they were changed (by this client or the revalidator).
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the estimated size of the cached objects (in bytes).
+   */
+  public long getWeight() {
+    synchronized (entries) {
+      return weight;
+    }
+  }
+
+  public void invalidate() {
+    synchronized (entries) {
+      entries.clear();
+      weight = 0;
+      generation++;
+      generations.put("document", generation);
+      generations.put("job", generation);
+      generations.put("customer", generation);
+    }
+  }
+
+  /**
+   * Drop the cached object with the given ID (all of its variants).
+   *
+   * @param ID of the object.
+   */
+  public void invalidate(Integer ID) {
+    synchronized (entries) {
+      generation++;
+      generations.put("document|" + ID, generation);
+      generations.put("job|" + ID, generation);
+      generations.put("customer|" + ID, generation);
+      remove(e -> e.ID.equals(ID));
+    }
+  }
+
+  protected <T> ApiResponse<T> get(ApiRequest<T> request, ReferenceCache.Loader<T> loader) throws EspritConnectionException {
+    String method = request.getMethod();
+    if (changed(request)) {
+      try {
+        return loader.load();
+      } finally {
+        // Again - so a read that overlapped the change isn't cached.
+        changed(request);
+      }
+    }
+    Integer ID = id(request);
+    if (ID == null || !(method.equals("document.get") || method.equals("job.get") || method.equals("customer.get"))) {
+      return loader.load();
+    }
+    Map<String, Object> variant = new TreeMap<>(request.getParams());
+    variant.remove("ID");
+    variant.remove("path");
+    String key = method + "|" + ID + "|" + variant;
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+      if (entry != null && System.currentTimeMillis() - entry.cached >= ttl) {
+        remove(key);
+        entry = null;
+      }
+    }
+    if (entry != null && revalidator != null && System.currentTimeMillis() - entry.validated >= revalidateAfter) {
+      revalidate();
+      synchronized (entries) {
+        entry = entries.get(key);
+      }
+    }
+    if (entry != null) {
+      hits.incrementAndGet();
+      return copy(entry);
+    }
+    misses.incrementAndGet();
+    String type = method.substring(0, method.indexOf('.'));
+    long loading;
+    synchronized (entries) {
+      loading = generation(type, ID);
+      loads++;
+    }
+    ApiResponse<T> response = null;
+    try {
+      response = loader.load();
+    } finally {
+      synchronized (entries) {
+        boolean changed = generation(type, ID) != loading;
+        if (--loads == 0) {
+          generations.clear();
+        }
+        // Not cached if it changed while loading - the result may be from before the change.
+        if (response != null && response.hasResult() && !response.hasError() && !changed) {
+          remove(key);
+          Entry added = new Entry(ID, type, response);
+          entries.put(key, added);
+          weight += added.weight;
+          evict();
+        }
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Drop the objects a change call is about to change (or has changed).
+   *
+   * @param request any request.
+   * @return true if the request changes a cached type.
+   */
+  protected boolean changed(ApiRequest<?> request) {
+    String method = request.getMethod(), type = method.substring(0, Math.max(0, method.indexOf('.')));
+    String action = method.substring(method.indexOf('.') + 1);
+    if (type.equals("workflow")) {
+      return moved(request, action);
+    }
+    if (!(type.equals("document") || type.equals("job") || type.equals("customer"))) {
+      return false;
+    }
+    if (!(action.equals("edit") || action.equals("delete") || (type.equals("document") && (action.equals("approve") || action.equals("reject"))))) {
+      return false;
+    }
+    Integer ID = id(request);
+    synchronized (entries) {
+      generation++;
+      if (ID == null) {
+        // By path (unresolved) - drop every object of the type.
+        generations.put(type, generation);
+        remove(e -> e.type.equals(type));
+      } else {
+        generations.put(type + "|" + ID, generation);
+        remove(e -> e.ID.equals(ID) && e.type.equals(type));
+        if (type.equals("job") && action.equals("delete")) {
+          // Its documents are dropped too.
+          generations.put("document", generation);
+          remove(e -> e.result instanceof EsDocument && ID.equals(((EsDocument) e.result).getJobID()));
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Workflow calls (other than reading and exporting workflows) move the status of the documents or
+   * jobs they run on.
+   */
+  private boolean moved(ApiRequest<?> request, String action) {
+    if (action.equals("get") || action.equals("exportWFL") || action.equals("importWFL")) {
+      return false;
+    }
+    Object esclass = request.getParams().get("class");
+    List<String> types = esclass == null ? Arrays.asList("document", "job") : esclass.toString().equals("PageOrder") ? Arrays.asList("document") : esclass.toString().equals("Job") ? Arrays.asList("job") : Collections.emptyList();
+    Set<Integer> IDs = new HashSet<>();
+    Integer ID = id(request);
+    if (ID != null) {
+      IDs.add(ID);
+    }
+    Object many = request.getParams().get("IDs");
+    if (many instanceof Collection) {
+      for (Object o : (Collection<?>) many) {
+        if (o != null && o.toString().matches("[0-9]+")) {
+          IDs.add(Integer.valueOf(o.toString()));
+        }
+      }
+    }
+    synchronized (entries) {
+      generation++;
+      for (String type : types) {
+        if (IDs.isEmpty()) {
+          // By path (unresolved) - drop every object of the type.
+          generations.put(type, generation);
+          remove(e -> e.type.equals(type));
+        } else {
+          IDs.forEach(i -> generations.put(type + "|" + i, generation));
+          remove(e -> IDs.contains(e.ID) && e.type.equals(type));
+        }
+      }
+    }
+    return !types.isEmpty();
+  }
+
+  /**
+   * Drop the documents of the job an upload adds to (it may be a new revision of one of them) -
+   * called before and after the upload so a read that overlapped it isn't cached.
+   *
+   * @param jobID of the upload.
+   */
+  protected void uploaded(int jobID) {
+    synchronized (entries) {
+      generation++;
+      generations.put("document", generation);
+      remove(e -> e.result instanceof EsDocument && Integer.valueOf(jobID).equals(((EsDocument) e.result).getJobID()));
+    }
+  }
+
+  /**
+   * Check every entry that is due in one revalidator call - single flight (callers that find the
+   * check running wait for it).
+   */
+  private void revalidate() {
+    synchronized (revalidation) {
+      long now = System.currentTimeMillis();
+      // By type - the same ID can be a document, a job and a customer.
+      Map<String, Map<Integer, Date>> due = new TreeMap<>();
+      Set<Entry> checked = new HashSet<>();
+      synchronized (entries) {
+        for (Entry e : entries.values()) {
+          if (now - e.validated >= revalidateAfter) {
+            due.computeIfAbsent(e.type, t -> new HashMap<>()).put(e.ID, e.result instanceof EsObject ? ((EsObject) e.result).getLastModificationDate() : null);
+            checked.add(e);
+          }
+        }
+      }
+      for (Map.Entry<String, Map<Integer, Date>> type : due.entrySet()) {
+        try {
+          Set<Integer> changed = new HashSet<>(revalidator.changed(type.getKey(), type.getValue()));
+          synchronized (entries) {
+            remove(e -> checked.contains(e) && e.type.equals(type.getKey()) && changed.contains(e.ID));
+            checked.stream().filter(e -> e.type.equals(type.getKey())).forEach(e -> e.validated = now);
+          }
+        } catch (EspritConnectionException | RuntimeException e) {
+          // Trust the entries until the TTL - the next caller tries again.
+        }
+      }
+    }
+  }
+
+  /**
+   * The latest change that affects the object (0 if none) - call with the entries lock held.
+   */
+  private long generation(String type, Integer ID) {
+    return Math.max(generations.getOrDefault(type, 0L), generations.getOrDefault(type + "|" + ID, 0L));
+  }
+
+  private void remove(String key) {
+    Entry removed = entries.remove(key);
+    if (removed != null) {
+      weight -= removed.weight;
+    }
+  }
+
+  private void remove(Predicate<Entry> filter) {
+    for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+      Entry e = i.next();
+      if (filter.test(e)) {
+        i.remove();
+        weight -= e.weight;
+        invalidations.incrementAndGet();
+      }
+    }
+  }
+
+  private void evict() {
+    for (Iterator<Entry> i = entries.values().iterator(); i.hasNext() && (entries.size() > maxEntries || weight > maxWeight);) {
+      weight -= i.next().weight;
+      i.remove();
+    }
+  }
+
+  private static Integer id(ApiRequest<?> request) {
+    Object ID = request.getParams().get("ID");
+    return ID != null && ID.toString().matches("[0-9]+") ? Integer.valueOf(ID.toString()) : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> ApiResponse<T> copy(Entry entry) {
+    return new ApiResponse<T>().copy((ApiResponse<T>) entry.response);
+  }
+
+  private static class Entry {
+    private final Integer ID;
+    private final String type;
+    private final ApiResponse<?> response;
+    private final Object result;
+    private final long cached = System.currentTimeMillis(), weight;
+    private volatile long validated = cached;
+
+    private Entry(Integer ID, String type, ApiResponse<?> response) {
+      this.ID = ID;
+      this.type = type;
+      this.response = response;
+      this.result = response.get();
+      this.weight = weigh(result);
+    }
+
+    /**
+     * A rough size - the XMP packet is usually most of it.
+     */
+    private static long weigh(Object result) {
+      String xmp = result instanceof EsDocument ? ((EsDocument) result).getXMP() : result instanceof EsJob ? ((EsJob) result).getXMP() : result instanceof EsCustomer ? ((EsCustomer) result).getXMP() : null;
+      return 1024 + (xmp == null ? 0 : xmp.length() * 2L);
+    }
+
+  }
+
+}
@@ -6,21 +6,33 @@ import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
 import java.awt.geom.Rectangle2D;
 import java.awt.geom.Rectangle2D.Float;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
@@ -28,17 +40,41 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import com.dalim.esprit.api.EsBase;
 import com.dalim.esprit.api.EsClass;
@@ -48,6 +84,7 @@ import com.dalim.esprit.api.EsReferenceable;
 import com.dalim.esprit.api.EsStatus;
 import com.dalim.esprit.api.EsStream;
 import com.dalim.esprit.api.EsXMP;
+import com.dalim.esprit.api.JsonBinding;
 import com.dalim.esprit.api.admin.EsError;
 import com.dalim.esprit.api.admin.EsLoginInformation;
 import com.dalim.esprit.api.admin.EsLoginResponse;
@@ -79,6 +116,7 @@ import com.dalim.esprit.api.workflow.EsWorkflowStatus;
 import com.dalim.esprit.api.workflow.EsWorkflowStep;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
@@ -87,6 +125,8 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
 
 /**
  * <p>
@@ -153,6 +193,7 @@ public class EspritAPI implements Closeable {
     }
     ApiResponse<EsLoginResponse> response = transport.execute(ApiRequest.from("admin.login", EsLoginResponse.class));
     response.ifResult(o -> {
+      transport.loggedOut = false;
       transport.setSession(o.getSessionID());
     });
     return response;
@@ -171,13 +212,17 @@ public class EspritAPI implements Closeable {
   }
 
   public void logout() {
-    if (isLoggedIn()) {
-      try {
-        transport.execute(ApiRequest.from("admin.logout"));
-      } catch (EspritConnectionException e) {
-        // Close is silent
+    // A relogin running at the same time can't install a new session once it is closed.
+    synchronized (transport.renewal) {
+      transport.loggedOut = true;
+      if (isLoggedIn()) {
+        try {
+          transport.execute(ApiRequest.from("admin.logout"));
+        } catch (EspritConnectionException e) {
+          // Close is silent
+        }
+        transport.setSession(null);
       }
-      transport.setSession(null);
     }
   }
 
@@ -201,6 +246,28 @@ public class EspritAPI implements Closeable {
 
   public transient Workflow workflow = new Workflow();
 
+  private transient AsyncEspritAPI async;
+
+  /**
+   * The asynchronous view of this API - every method returns a CompletableFuture of the
+   * ApiResponse. Calls run on a bounded daemon pool shared by the view.
+   * 
+   * @return the (shared) async view of this instance.
+   */
+  public synchronized AsyncEspritAPI async() {
+    return async == null ? async = new AsyncEspritAPI(this) : async;
+  }
+
+  /**
+   * An asynchronous view of this API running calls on the given executor.
+   * 
+   * @param executor to run the calls.
+   * @return a new async view of this instance.
+   */
+  public AsyncEspritAPI async(Executor executor) {
+    return new AsyncEspritAPI(this, executor);
+  }
+
   /**
    * Used in a direct response from the API.
    * 
@@ -235,6 +302,72 @@ public class EspritAPI implements Closeable {
     return DirectResult.from(transport.execute(req));
   }
 
+  /**
+   * Create a new batch - requests added to the batch are sent to the server in a single JSON-RPC
+   * batch call.
+   * 
+   * <p>
+   * {@code
+   * Batch batch = api.newBatch();
+   * ApiResponse<EsDocument> doc = batch.add(ApiRequest.from("document.get", EsDocument.class, EsRef.from(90988900)));
+   * batch.execute();
+   * }
+   * 
+   * @return an empty batch.
+   */
+  public Batch newBatch() {
+    return new Batch();
+  }
+
+  /**
+   * A list of requests executed together. The responses returned by {@link #add(ApiRequest)} are
+   * empty until the batch is executed.
+   * 
+   * <p>
+   * If the server rejects the batch the requests are sent one after another over the (pooled)
+   * connection instead - the result is the same, only slower. Stream and String requests are always
+   * sent on their own.
+   */
+  public final class Batch {
+    private List<ApiRequest<?>> requests = new ArrayList<>();
+    private List<ApiResponse<?>> responses = new ArrayList<>();
+
+    private Batch() {
+
+    }
+
+    /**
+     * Add a request to this batch.
+     * 
+     * @param request to execute.
+     * @return the response - populated when the batch is executed.
+     */
+    public <T> ApiResponse<T> add(ApiRequest<T> request) {
+      ApiResponse<T> response = new ApiResponse<>();
+      requests.add(request);
+      responses.add(response);
+      return response;
+    }
+
+    public int size() {
+      return requests.size();
+    }
+
+    /**
+     * Send the requests - this can be called once.
+     * 
+     * @return the instance it was call on (for chaining).
+     * @throws EspritConnectionException
+     */
+    public Batch execute() throws EspritConnectionException {
+      transport.execute(requests, responses);
+      requests = Collections.emptyList();
+      responses = Collections.emptyList();
+      return this;
+    }
+
+  }
+
   /**
    * The "admin.*" API methods.
    * 
@@ -616,7 +749,88 @@ public class EspritAPI implements Closeable {
      * @throws EspritConnectionException
      */
     public ApiResponse<InputStream> get(int documentID, EsStream type) throws EspritConnectionException {
-      return transport.stream(documentID, type);
+      return transport.stream(documentID, type, null);
+    }
+
+    /**
+     * Streams the file, preview, thumbnail or note report of a document - with a content cache
+     * (see {@link EspritAPI#setContentCache(ContentCache)}) the cached stream is used until the
+     * document is modified.
+     * 
+     * @param document the document (with its revision and modification date).
+     * @param type EsStream type.
+     * @return
+     * @throws EspritConnectionException
+     */
+    public ApiResponse<InputStream> get(EsDocument document, EsStream type) throws EspritConnectionException {
+      return transport.stream(document.getID(), type, ContentCache.version(document));
+    }
+
+    /**
+     * Writes the file, preview, thumbnail or note report of the document corresponding to the
+     * pageOrder ID to a channel - cached streams are transferred straight from the cache file.
+     * 
+     * <p>
+     * The channel is not closed.
+     * 
+     * @param documentID ID of the page order.
+     * @param type EsStream type.
+     * @param target channel to write to.
+     * @return the number of bytes written.
+     * @throws EspritConnectionException
+     */
+    public ApiResponse<Long> download(int documentID, EsStream type, WritableByteChannel target) throws EspritConnectionException {
+      return transport.download(documentID, type, null, target, null);
+    }
+
+    /**
+     * Writes the file, preview, thumbnail or note report of the document corresponding to the
+     * pageOrder ID to a channel - reporting the progress as it goes.
+     * 
+     * @param documentID ID of the page order.
+     * @param type EsStream type.
+     * @param target channel to write to (not closed).
+     * @param progress called after each block is written (can be null).
+     * @return the number of bytes written.
+     * @throws EspritConnectionException
+     */
+    public ApiResponse<Long> download(int documentID, EsStream type, WritableByteChannel target, Progress progress) throws EspritConnectionException {
+      return transport.download(documentID, type, null, target, progress);
+    }
+
+    /**
+     * Downloads the file, preview, thumbnail or note report of the document corresponding to the
+     * pageOrder ID to a file.
+     * 
+     * @param documentID ID of the page order.
+     * @param type EsStream type.
+     * @param target file to write (replaced if it exists).
+     * @return the number of bytes written.
+     * @throws EspritConnectionException
+     */
+    public ApiResponse<Long> download(int documentID, EsStream type, Path target) throws EspritConnectionException {
+      return transport.download(documentID, type, null, target, false, null);
+    }
+
+    /**
+     * Downloads the file, preview, thumbnail or note report of the document corresponding to the
+     * pageOrder ID to a file.
+     * 
+     * <p>
+     * The stream is written to a temporary file next to the target which is then renamed (atomically)
+     * to the target - the target is never left half written and is only replaced when the download
+     * completes.
+     * 
+     * @param documentID ID of the page order.
+     * @param type EsStream type.
+     * @param target file to write (replaced if it exists).
+     * @param fsync force the file to the disk before it is renamed.
+     * @param progress called after each block is written (can be null).
+     * @return the number of bytes written.
+     * @throws EspritConnectionException
+     */
+    public ApiResponse<Long> download(int documentID, EsStream type, Path target, boolean fsync, Progress progress) throws EspritConnectionException {
+      return transport.download(documentID, type, null, target, fsync, progress);
     }
 
     /**
@@ -711,7 +925,8 @@ public class EspritAPI implements Closeable {
      * 
      * <p>
      * The optional length parameter allows 'full' streaming - the form data is written to the
-     * socket (basically). This would make a progress bar accurate.
+     * socket (basically). This would make a progress bar accurate. Without a length the form data
+     * is sent with chunked transfer encoding (the server must accept it).
      * 
      * @param payload stream to upload.
      * @param length when provided will enable full streaming.
@@ -721,7 +936,53 @@ public class EspritAPI implements Closeable {
      * @throws EspritConnectionException
      */
     public ApiResponse<Boolean> upload(InputStream payload, Optional<Long> length, String fileName, UploadMetadata metadata) throws EspritConnectionException {
-      return transport.upload(payload, length, fileName, metadata.map);
+      return transport.upload(Payload.from(payload, length), fileName, metadata.map);
+    }
+
+    /**
+     * Upload a file (as a PageOrder with the same name) - see
+     * {@link #upload(Path, String, UploadMetadata)}.
+     * 
+     * @param file to upload.
+     * @param metadata metadata to add to document see:{@link#newUploadMetadata}
+     * @return
+     * @throws EspritConnectionException
+     */
+    public ApiResponse<Boolean> upload(Path file, UploadMetadata metadata) throws EspritConnectionException {
+      return upload(file, file.getFileName().toString(), metadata);
+    }
+
+    /**
+     * Upload a file - the length is known so the form data and the file are streamed straight to
+     * the socket (the file is read through a FileChannel) and nothing is buffered in memory.
+     * 
+     * @param file to upload.
+     * @param fileName PageOrder name in ES.
+     * @param metadata metadata to add to document see:{@link#newUploadMetadata}
+     * @return
+     * @throws EspritConnectionException
+     */
+    public ApiResponse<Boolean> upload(Path file, String fileName, UploadMetadata metadata) throws EspritConnectionException {
+      return upload(file, fileName, metadata, null);
+    }
+
+    /**
+     * Upload a file - reporting the progress as it goes (see
+     * {@link #upload(Path, String, UploadMetadata)}).
+     * 
+     * @param file to upload.
+     * @param fileName PageOrder name in ES.
+     * @param metadata metadata to add to document see:{@link#newUploadMetadata}
+     * @param progress called after each block is written (can be null).
+     * @return
+     * @throws EspritConnectionException
+     */
+    public ApiResponse<Boolean> upload(Path file, String fileName, UploadMetadata metadata, Progress progress) throws EspritConnectionException {
+      try {
+        return transport.upload(Payload.from(file, progress), fileName, metadata.map);
+      } catch (IOException e) {
+        throw new EspritConnectionException("UPLOAD Failed [" + file + "]", e);
+      }
     }
 
     /**
@@ -747,6 +1008,24 @@ public class EspritAPI implements Closeable {
         map.put("JobID", jobID + "");
       }
 
+      protected int getJobID() {
+        return Integer.parseInt(map.get("JobID"));
+      }
+
+      protected Map<String, String> getEntries() {
+        return Collections.unmodifiableMap(map);
+      }
+
+      /**
+       * @param key form field name (as formatted by {@link #add(String, String, String)}).
+       * @param value of the field.
+       * @return the instance it was call on (for chaining).
+       */
+      protected UploadMetadata put(String key, String value) {
+        map.put(key, value);
+        return this;
+      }
+
       public UploadMetadata add(String namespace, String property, String value) {
         map.put("MetaData/:" + namespace + "/" + property, value);
         return this;
@@ -1105,6 +1384,93 @@ public class EspritAPI implements Closeable {
       return transport.execute(ApiRequest.from("production.executeSQL", EsSqlResult.class).put("sql", query));
     }
 
+    /**
+     * Streams the rows of the query a page at a time - each page is a "production.executeSQL" call
+     * using the LIMIT / OFFSET of the builder. The next page is fetched in the background while the
+     * current one is consumed, so at most two pages are held at once.
+     * 
+     * <p>
+     * The query is copied when the stream is created (the builder isn't changed) with the page size
+     * as its limit - give it an order by column so the pages are stable. Nothing is fetched until
+     * the stream is consumed. Server errors are thrown (unchecked) from the stream. Close the stream
+     * if it is not consumed to the end.
+     * 
+     * @param builder the query.
+     * @param pageSize rows per call (at least 1).
+     * @return a lazy stream of rows.
+     */
+    public Stream<EsSqlResult.Row> streamSQL(SQLQueryBuilder builder, int pageSize) {
+      if (pageSize < 1) {
+        throw new IllegalArgumentException("Page size must be at least 1.");
+      }
+      SQLCursor cursor = new SQLCursor(builder.copy().limit(pageSize), pageSize);
+      return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(cursor::close);
+    }
+
+    private class SQLCursor implements Iterator<EsSqlResult.Row> {
+      private final SQLQueryBuilder builder;
+      private final int pageSize;
+      private int offset = 0, index = 0;
+      private boolean started, closed;
+      private EsSqlResult page;
+      private CompletableFuture<ApiResponse<EsSqlResult>> next;
+
+      private SQLCursor(SQLQueryBuilder builder, int pageSize) {
+        this.builder = builder;
+        this.pageSize = pageSize;
+      }
+
+      private CompletableFuture<ApiResponse<EsSqlResult>> fetch() {
+        CompletableFuture<ApiResponse<EsSqlResult>> future = async().production.executeSQL(builder.build(offset));
+        offset += pageSize;
+        return future;
+      }
+
+      @Override
+      public boolean hasNext() {
+        if (!started && !closed) {
+          started = true;
+          next = fetch();
+        }
+        while ((page == null || index >= page.getLength()) && next != null) {
+          ApiResponse<EsSqlResult> response;
+          try {
+            response = next.join();
+          } catch (CompletionException e) {
+            next = null;
+            throw new RuntimeException("SQL Failed.", e.getCause());
+          }
+          if (response.hasError()) {
+            next = null;
+            throw new RuntimeException("SQL Failed " + EsSqlResult.formatError(response.error()));
+          }
+          page = response.or(null);
+          index = 0;
+          // A short page is the last one.
+          next = page != null && page.getLength() >= pageSize ? fetch() : null;
+        }
+        return page != null && index < page.getLength();
+      }
+
+      @Override
+      public EsSqlResult.Row next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return page.getRow(index++);
+      }
+
+      private void close() {
+        closed = true;
+        if (next != null) {
+          next.cancel(false);
+          next = null;
+        }
+        page = null;
+      }
+
+    }
+
     /**
      * Create a new builder to create the query for {@link #executeSQL(String)}
      * 
@@ -1155,6 +1521,16 @@ public class EspritAPI implements Closeable {
         return this;
       }
 
+      private SQLQueryBuilder copy() {
+        SQLQueryBuilder copy = new SQLQueryBuilder();
+        copy.columns.addAll(columns);
+        copy.clauses.addAll(clauses);
+        copy.tables.addAll(tables);
+        copy.limit = limit;
+        copy.orderBy = orderBy;
+        return copy;
+      }
+
       public String build(Integer offset) {
         StringBuilder builder = new StringBuilder("SELECT ");
         builder.append(io.join(",", columns)).append(" FROM ").append(io.join(",", tables));
@@ -1587,177 +1963,1389 @@ public class EspritAPI implements Closeable {
 
   private Transport transport;
 
-  private final class Transport {
-    private String endpoint, username, auth;
-    private transient String sessionid = null;
-
-    private Transport(String endpoint, String auth) {
-      this.endpoint = endpoint;
-      this.username = new String(Base64.getDecoder().decode(auth)).split(":")[0];
-      this.auth = auth;
+  /**
+   * Use the given connection pool for all calls made by this instance - a pool can be shared
+   * between instances that talk to the same host. The default pool has no per-host limit.
+   * 
+   * @param pool the connection pool.
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setConnectionPool(ConnectionPool pool) {
+    if (pool == null) {
+      throw new IllegalArgumentException("Connection pool can't be null.");
     }
+    transport.pool = pool;
+    return this;
+  }
 
-    private boolean hasSession() {
-      return sessionid != null;
-    }
+  public ConnectionPool getConnectionPool() {
+    return transport.pool;
+  }
 
-    private void setSession(String sessionid) {
-      this.sessionid = sessionid;
-    }
+  /**
+   * Gzip request bodies of at least the given size (in bytes) - the server must accept a gzip
+   * Content-Encoding. Useful for large calls like "workflow.importWFL" or bulk metadata edits.
+   * Responses are always decoded when the server compresses them.
+   * 
+   * @param threshold minimum body size to compress (0 disables compression, the default).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setRequestCompression(int threshold) {
+    transport.compressionThreshold = threshold;
+    return this;
+  }
 
-    private ApiResponse<Boolean> upload(InputStream payload, Optional<Long> length, String name, Map<String, String> metadata) throws EspritConnectionException {
-      ApiResponse<Boolean> response = new ApiResponse<>();
-      String boundary = "==" + System.currentTimeMillis() + "==";
-      HttpURLConnection connection = null;
-      try {
-        byte[] preContent;
-        byte[] pstContent;
-        // We write the form data to streams so we can calculate their length - because if we have
-        // the length of the file we can stream this.
-        {
-          ByteArrayOutputStream bos;
-          PrintWriter wt;
-          // Write the PREFILE FORM
-          wt = new PrintWriter(new OutputStreamWriter(bos = new ByteArrayOutputStream(), io.UTF_8), true);
-          // Add the parameters
-          for (Entry<String, String> entry : metadata.entrySet()) {
-            wt.append("--" + boundary).append(io.LF);
-            wt.append("Content-Disposition: form-data; name=\"").append(entry.getKey()).append("\"").append(io.LF);
-            wt.append("Content-Type: text/plain; charset=").append(io.UTF_8).append(io.LF).append(io.LF);
-            wt.append(io.asString(entry.getValue())).append(io.LF);
-            wt.flush();
-          }
-          // File upload header
-          wt.append("--" + boundary).append(io.LF);
-          wt.append("Content-Disposition: form-data; name=\"file\"; filename=\"").append(name).append("\"").append(io.LF);
-          wt.append("Content-Type: ").append(HttpURLConnection.guessContentTypeFromName(name)).append(io.LF);
-          wt.append("Content-Transfer-Encoding: binary").append(io.LF).append(io.LF);
-          wt.flush();
-          io.close(wt);
-          preContent = bos.toByteArray();
-          // Write the PSTFILE FORM
-          wt = new PrintWriter(new OutputStreamWriter(bos = new ByteArrayOutputStream(), io.UTF_8), true);
-          wt.append(io.LF);
-          wt.append("--" + boundary + "--").append(io.LF);
-          wt.flush();
-          io.close(wt);
-          pstContent = bos.toByteArray();
-        }
-        connection = (HttpURLConnection) new URL(endpoint.concat(UPL_ENDPOINT)).openConnection();
-        if (length.isPresent()) {
-          connection.setFixedLengthStreamingMode(preContent.length + length.get() + pstContent.length);
-        }
-        connection.setRequestMethod("POST");
-        connection.setConnectTimeout(1000 * 30);
-        connection.setReadTimeout(1000 * 60 * 3);
-        if (isLoggedIn()) {
-          connection.setRequestProperty("Cookie", "JSESSIONID=" + sessionid);
-        } else {
-          throw new EspritConnectionException("AUTH [Not logged in to API]");
-        }
-        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);;
-        connection.setDoOutput(true);
-        connection.setDoInput(true);
-        connection.connect();
-        OutputStream os = new BufferedOutputStream(connection.getOutputStream());
-        {
-          io.copy(new ByteArrayInputStream(preContent), os, false);
-          io.copy(new BufferedInputStream(payload), os, false);
-          io.close(payload);
-          io.copy(new ByteArrayInputStream(pstContent), os, false);
-        }
+  /**
+   * Download large files (to a Path) in several ranges at once - when the server supports ranges.
+   * 
+   * @param segments maximum number of concurrent ranges per download (1 disables, the default).
+   * @param minSize smallest range (in bytes - default 64MB).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setSegmentedDownloads(int segments, long minSize) {
+    transport.segments = Math.max(1, segments);
+    transport.segmentSize = Math.max(1, minSize);
+    return this;
+  }
 
-        io.close(os);
-        response.setResult(connection.getResponseCode() == 204);
-      } catch (IOException e) {
-        throw new EspritConnectionException("HTTP Exception.", e);
-      } finally {
-        io.close(payload);
-        if (connection != null) {
-          connection.disconnect();
-        }
-      }
-      return response;
-    }
+  /**
+   * Log in again (once, for all of the threads using this instance) when the server rejects an
+   * expired session - idempotent requests (see {@link ApiRequest#isIdempotent()}) are then replayed
+   * transparently, other requests still fail but the next call uses the new session.
+   * 
+   * @param relogin enable (the default) or disable.
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setAutoRelogin(boolean relogin) {
+    transport.relogin = relogin;
+    return this;
+  }
 
-    private ApiResponse<InputStream> stream(int documentID, EsStream type) throws EspritConnectionException {
-      ApiResponse<InputStream> response = new ApiResponse<>();
-      HttpURLConnection connection = null;
-      try {
-        connection = (HttpURLConnection) new URL(endpoint.concat(INT_ENDPOINT).concat(type.toString()).concat("/").concat(io.asString(documentID))).openConnection();
-        connection.setRequestMethod("GET");
-        if (isLoggedIn()) {
-          connection.setRequestProperty("Cookie", "JSESSIONID=" + sessionid);
-        } else {
-          throw new EspritConnectionException("AUTH [Not logged in to API]");
-        }
-        connection.connect();
-        if (connection.getResponseCode() == 200) {
-          response.setResult(new io.AutocloseConnectionStream(connection, connection.getInputStream()));
-        }
-      } catch (IOException e) {
-        if (connection != null) {
-          connection.disconnect();
-        }
-        throw new EspritConnectionException("HTTP Exception.", e);
-      }
-      return response;
+  /**
+   * The call policy (timeouts, retries and backoff) for a method - or for every method in a
+   * namespace (eg: "production"). The policy for an exact method name wins over its namespace. The
+   * file transfers use the names "upload" and "stream".
+   * 
+   * @param method name or namespace.
+   * @param policy to use (null to revert to the default).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setPolicy(String method, Policy policy) {
+    if (policy == null) {
+      transport.policies.remove(method);
+    } else {
+      transport.policies.put(method, policy);
     }
+    return this;
+  }
 
-    @SuppressWarnings("unchecked")
-    private <T> ApiResponse<T> execute(ApiRequest<T> command) throws EspritConnectionException {
-      ApiResponse<T> response = new ApiResponse<>();
-      HttpURLConnection connection = null;
-      boolean streaming = command.getType().equals(InputStream.class);
-      try {
-        connection = (HttpURLConnection) new URL(endpoint.concat(RPC_ENDPOINT)).openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setRequestProperty("Accept", "*/*");
-        connection.setConnectTimeout(1000 * 10);
-        connection.setReadTimeout(1000 * 60);
-        if (isLoggedIn()) {
-          connection.setRequestProperty("Cookie", "JSESSIONID=" + sessionid);
-        } else {
-          if ("admin.login".equals(command.getMethod())) {
-            connection.setRequestProperty("Authorization", "Basic " + auth);
-          } else {
-            throw new EspritConnectionException("AUTH Failed [Not called][Not logged in to API]");
-          }
-        }
-        connection.setDoInput(true);
-        connection.setDoOutput(true);
-        connection.connect();
-        OutputStream os = connection.getOutputStream();
-        os.write(json.getCompact().toJson(command).getBytes(io.UTF_8));
-        os.close();
-        int code;
+  /**
+   * The policy for methods without their own (see {@link #setPolicy(String, Policy)}).
+   * 
+   * @param policy the default policy.
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setDefaultPolicy(Policy policy) {
+    transport.defaults = policy;
+    return this;
+  }
+
+  /**
+   * Fail fast (without calling the server) after the given number of consecutive failures - a
+   * single trial call is let through once the open time has passed and closes the circuit again if
+   * it succeeds. Failures are connection errors, timeouts and 502/503/504 responses.
+   * 
+   * @param failures consecutive failures that open the circuit (0 disables the breaker).
+   * @param openTime how long the circuit stays open (in milliseconds).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setCircuitBreaker(int failures, long openTime) {
+    transport.breaker.configure(failures, openTime);
+    return this;
+  }
+
+  /**
+   * Share one call between threads making the same read (same method and params) at the same time
+   * - the threads get the same response (and result object) so results must not be modified. Some
+   * facade methods (like {@link Document#getNotes(EsReferenceable, Optional)}) modify theirs -
+   * don't enable it when those are called concurrently.
+   * 
+   * @param coalescing enable or disable (the default).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setCoalescing(boolean coalescing) {
+    transport.coalescing = coalescing;
+    return this;
+  }
+
+  /**
+   * Cache the reference data (color spaces, workflows, roles...) - see {@link ReferenceCache}.
+   * 
+   * @param cache to use (null to stop caching).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setReferenceCache(ReferenceCache cache) {
+    transport.cache = cache;
+    return this;
+  }
+
+  public ReferenceCache getReferenceCache() {
+    return transport.cache;
+  }
+
+  /**
+   * Resolve path references from a cache of paths to IDs - see {@link PathCache}.
+   * 
+   * @param paths cache to use (null to stop caching).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setPathCache(PathCache paths) {
+    transport.paths = paths;
+    return this;
+  }
+
+  public PathCache getPathCache() {
+    return transport.paths;
+  }
+
+  /**
+   * Keep document thumbnails, previews and preflight reports on disk - see {@link ContentCache}.
+   * 
+   * @param content cache to use (null to stop caching).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setContentCache(ContentCache content) {
+    transport.content = content;
+    return this;
+  }
+
+  public ContentCache getContentCache() {
+    return transport.content;
+  }
+
+  /**
+   * Cache documents, jobs and customers by ID - see {@link EntityCache}.
+   * 
+   * @param entities cache to use (null to stop caching).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setEntityCache(EntityCache entities) {
+    transport.entities = entities;
+    return this;
+  }
+
+  public EntityCache getEntityCache() {
+    return transport.entities;
+  }
+
+  /**
+   * Send a request straight to the server - past the path, entity and reference caches and without
+   * sharing the call (for reads that must see the current state).
+   */
+  protected <T> ApiResponse<T> fresh(ApiRequest<T> request) throws EspritConnectionException {
+    return transport.dispatch(request);
+  }
+
+  /**
+   * Limit the rate and concurrency of the calls to a method, a namespace (eg: "document") or the
+   * file transfers ("upload" and "stream") - "*" limits every call without a limiter of its own
+   * (including batches). The same limiter can be set for several names to share one limit.
+   * 
+   * @param family method name, namespace, "upload", "stream" or "*".
+   * @param limiter to use (null removes the limit).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPI setLimiter(String family, Limiter limiter) {
+    if (limiter == null) {
+      transport.limiters.remove(family);
+    } else {
+      transport.limiters.put(family, limiter);
+    }
+    return this;
+  }
+
+  /**
+   * Transport counters for this instance.
+   * 
+   * @return the (live) metrics.
+   */
+  public Metrics getMetrics() {
+    return transport.metrics;
+  }
+
+  /**
+   * Live transport counters - values only increase.
+   */
+  public static final class Metrics {
+    private final AtomicLong requestBytes = new AtomicLong(), requestWireBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong(), responseWireBytes = new AtomicLong();
+    private final AtomicLong relogins = new AtomicLong(), replays = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong(), rejections = new AtomicLong(), trips = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private volatile CircuitState circuit = CircuitState.CLOSED;
+
+    private Metrics() {
+
+    }
+
+    /**
+     * @return request body bytes before compression.
+     */
+    public long getRequestBytes() {
+      return requestBytes.get();
+    }
+
+    /**
+     * @return request body bytes sent.
+     */
+    public long getRequestWireBytes() {
+      return requestWireBytes.get();
+    }
+
+    /**
+     * @return decoded bytes of compressed responses.
+     */
+    public long getResponseBytes() {
+      return responseBytes.get();
+    }
+
+    /**
+     * @return bytes received for compressed responses.
+     */
+    public long getResponseWireBytes() {
+      return responseWireBytes.get();
+    }
+
+    public long getRequestBytesSaved() {
+      return requestBytes.get() - requestWireBytes.get();
+    }
+
+    public long getResponseBytesSaved() {
+      return responseBytes.get() - responseWireBytes.get();
+    }
+
+    /**
+     * @return logins made to replace an expired session.
+     */
+    public long getRelogins() {
+      return relogins.get();
+    }
+
+    /**
+     * @return requests (or batches) sent again after a relogin.
+     */
+    public long getReplays() {
+      return replays.get();
+    }
+
+    /**
+     * @return idempotent calls sent again after a failure.
+     */
+    public long getRetries() {
+      return retries.get();
+    }
+
+    /**
+     * @return calls failed fast while the circuit was open.
+     */
+    public long getCircuitRejections() {
+      return rejections.get();
+    }
+
+    /**
+     * @return the number of times the circuit has opened.
+     */
+    public long getCircuitTrips() {
+      return trips.get();
+    }
+
+    public CircuitState getCircuitState() {
+      return circuit;
+    }
+
+    /**
+     * @return calls answered by an identical call that was already in flight.
+     */
+    public long getCoalesced() {
+      return coalesced.get();
+    }
+
+  }
+
+  public enum CircuitState {
+    CLOSED, OPEN, HALF_OPEN;
+  }
+
+  /**
+   * Progress of a transfer.
+   */
+  @FunctionalInterface
+  public interface Progress {
+
+    /**
+     * @param transferred bytes so far.
+     * @param total bytes (-1 when the length is unknown).
+     */
+    void update(long transferred, long total);
+
+  }
+
+  /**
+   * Timeouts and retries for a call. Only idempotent calls (see {@link ApiRequest#isIdempotent()})
+   * are retried - after a connection error, a timeout or a 502/503/504 response - with a jittered
+   * exponential backoff.
+   */
+  public static final class Policy {
+    private int connectTimeout, readTimeout, retries = 2;
+    private long backoff = 200, maxBackoff = 1000 * 10;
+
+    public Policy(int connectTimeout, int readTimeout) {
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+    }
+
+    public static Policy from(int connectTimeout, int readTimeout) {
+      return new Policy(connectTimeout, readTimeout);
+    }
+
+    /**
+     * @param retries the number of times an idempotent call is sent again (0 disables retries).
+     * @return the instance it was call on (for chaining).
+     */
+    public Policy setRetries(int retries) {
+      this.retries = retries;
+      return this;
+    }
+
+    /**
+     * The wait before retry n is a random time up to min(max, base * 2^n).
+     * 
+     * @param base first backoff (in milliseconds).
+     * @param max longest backoff (in milliseconds).
+     * @return the instance it was call on (for chaining).
+     */
+    public Policy setBackoff(long base, long max) {
+      this.backoff = base;
+      this.maxBackoff = max;
+      return this;
+    }
+
+    public int getConnectTimeout() {
+      return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+      return readTimeout;
+    }
+
+    public int getRetries() {
+      return retries;
+    }
+
+    private long backoff(int attempt) {
+      long ceiling = Math.min(maxBackoff, backoff << Math.min(attempt, 30));
+      return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+  }
+
+  private final class Transport {
+    private String endpoint, username, auth;
+    private transient volatile String sessionid = null;
+    private transient ConnectionPool pool = new ConnectionPool();
+    private transient volatile boolean relogin = true, loggedOut;
+    private transient final Object renewal = new Object();
+    private transient final Map<String, Policy> policies = new ConcurrentHashMap<>();
+    private transient Policy defaults = Policy.from(1000 * 10, 1000 * 60);
+    private transient final Policy uploads = Policy.from(1000 * 30, 1000 * 60 * 3).setRetries(0), streams = Policy.from(1000 * 30, 1000 * 60 * 3);
+    private transient final Breaker breaker = new Breaker();
+    private transient final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+    private transient final Map<String, CompletableFuture<ApiResponse<?>>> inflight = new ConcurrentHashMap<>();
+    private transient volatile boolean coalescing;
+    private transient volatile ReferenceCache cache;
+    private transient volatile PathCache paths;
+    private transient volatile EntityCache entities;
+    private transient volatile ContentCache content;
+
+    private Transport(String endpoint, String auth) {
+      this.endpoint = endpoint;
+      this.username = new String(Base64.getDecoder().decode(auth)).split(":")[0];
+      this.auth = auth;
+    }
+
+    private boolean hasSession() {
+      return sessionid != null;
+    }
+
+    private void setSession(String sessionid) {
+      this.sessionid = sessionid;
+    }
+
+    /**
+     * Replace the expired session - single flight: the first thread logs in while the others wait
+     * and then use the new session.
+     * 
+     * @return true if there is a new session to replay with.
+     */
+    private boolean renew(String expired) throws EspritConnectionException {
+      if (!relogin || expired == null) {
+        return false;
+      }
+      synchronized (renewal) {
+        if (loggedOut) {
+          return false;
+        }
+        if (expired.equals(sessionid)) {
+          ApiResponse<EsLoginResponse> response = call(ApiRequest.from("admin.login", EsLoginResponse.class), policy("admin.login", defaults));
+          if (!response.hasResult()) {
+            return false;
+          }
+          setSession(response.get().getSessionID());
+          metrics.relogins.incrementAndGet();
+        }
+        // Null when the session was closed (logout) in the meantime.
+        return sessionid != null;
+      }
+    }
+
+    private Policy policy(String method, Policy fallback) {
+      return find(policies, method, fallback);
+    }
+
+    private Limiter limiter(String method) {
+      return find(limiters, method, limiters.get("*"));
+    }
+
+    /**
+     * The value for the exact method - or its namespace.
+     */
+    private <X> X find(Map<String, X> values, String method, X fallback) {
+      X value = values.get(method);
+      if (value == null && method.indexOf('.') > 0) {
+        value = values.get(method.substring(0, method.indexOf('.')));
+      }
+      return value == null ? fallback : value;
+    }
+
+    /**
+     * Lease a connection - a pool timeout is the client's own saturation, not a server failure, so
+     * it isn't transient (and doesn't count against the circuit breaker).
+     */
+    private ConnectionPool.Lease lease(URL url) throws EspritConnectionException {
+      try {
+        return pool.lease(url);
+      } catch (IOException e) {
+        throw new EspritConnectionException(e.getMessage(), e);
+      }
+    }
+
+    private <R> R exchange(Policy policy, Limiter limiter, boolean idempotent, Exchange<R> exchange) throws EspritConnectionException {
+      return exchange(policy, limiter, idempotent, true, exchange);
+    }
+
+    /**
+     * Make the exchange within the limiter and through the circuit breaker - idempotent exchanges
+     * are retried (after a backoff) when they fail with a transient error. A stream result keeps the
+     * limiter slot until it is closed.
+     *
+     * @param sampled false if the time of the exchange says nothing about the server (an upload
+     *        takes as long as the file takes to send) - only its errors adjust the limit.
+     */
+    @SuppressWarnings("rawtypes")
+    private <R> R exchange(Policy policy, Limiter limiter, boolean idempotent, boolean sampled, Exchange<R> exchange) throws EspritConnectionException {
+      for (int attempt = 0;; attempt++) {
+        long start = limiter == null ? 0 : limiter.acquire();
+        try {
+          breaker.acquire();
+        } catch (EspritConnectionException e) {
+          if (limiter != null) {
+            limiter.cancel();
+          }
+          throw e;
+        }
+        boolean overloaded = false, held = false;
+        try {
+          R result = replay(exchange, idempotent);
+          breaker.success();
+          if (limiter != null && result instanceof ApiResponse && ((ApiResponse) result).hasResult() && ((ApiResponse) result).get() instanceof io.AutocloseConnectionStream) {
+            limiter.sample(start, false);
+            ((io.AutocloseConnectionStream) ((ApiResponse) result).get()).onClose(limiter::cancel);
+            held = true;
+          }
+          return result;
+        } catch (TransientException e) {
+          overloaded = true;
+          breaker.failure();
+          if (!idempotent || attempt >= policy.retries) {
+            throw e;
+          }
+        } catch (EspritConnectionException | RuntimeException e) {
+          breaker.release();
+          throw e;
+        } finally {
+          if (limiter != null && !held) {
+            if (sampled || overloaded) {
+              limiter.release(start, overloaded);
+            } else {
+              limiter.cancel();
+            }
+          }
+        }
+        metrics.retries.incrementAndGet();
+        try {
+          Thread.sleep(policy.backoff(attempt));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new EspritConnectionException("HTTP Interrupted [Retry]", e);
+        }
+      }
+    }
+
+    /**
+     * Make the exchange - once more with a new session if the session expired and the exchange is
+     * idempotent.
+     */
+    private <R> R replay(Exchange<R> exchange, boolean idempotent) throws EspritConnectionException {
+      try {
+        return exchange.call();
+      } catch (SessionExpiredException e) {
+        if (!renew(e.session) || !idempotent) {
+          throw e;
+        }
+        metrics.replays.incrementAndGet();
+        return exchange.call();
+      }
+    }
+
+    /**
+     * Circuit breaker for the server - opened by consecutive transient failures.
+     */
+    private final class Breaker {
+      private int threshold = 5, failures;
+      private long openTime = 1000 * 30, openedAt;
+      private boolean trial;
+
+      private synchronized void configure(int threshold, long openTime) {
+        this.threshold = threshold;
+        this.openTime = openTime;
+        success();
+      }
+
+      private synchronized void acquire() throws EspritConnectionException {
+        if (threshold <= 0) {
+          return;
+        }
+        if (metrics.circuit == CircuitState.OPEN && System.currentTimeMillis() - openedAt >= openTime) {
+          metrics.circuit = CircuitState.HALF_OPEN;
+        }
+        if (metrics.circuit == CircuitState.OPEN || (metrics.circuit == CircuitState.HALF_OPEN && trial)) {
+          metrics.rejections.incrementAndGet();
+          throw new EspritConnectionException("CIRCUIT Open [" + endpoint + "]");
+        }
+        trial = metrics.circuit == CircuitState.HALF_OPEN;
+      }
+
+      private synchronized void success() {
+        failures = 0;
+        trial = false;
+        metrics.circuit = CircuitState.CLOSED;
+      }
+
+      private synchronized void failure() {
+        trial = false;
+        if (threshold > 0 && (metrics.circuit == CircuitState.HALF_OPEN || ++failures >= threshold)) {
+          if (metrics.circuit != CircuitState.OPEN) {
+            metrics.trips.incrementAndGet();
+          }
+          metrics.circuit = CircuitState.OPEN;
+          openedAt = System.currentTimeMillis();
+        }
+      }
+
+      /**
+       * The call ended without telling us anything about the server.
+       */
+      private synchronized void release() {
+        trial = false;
+      }
+
+    }
+
+    private ApiResponse<Boolean> upload(Payload payload, String name, Map<String, String> metadata) throws EspritConnectionException {
+      EntityCache entities = this.entities;
+      if (entities == null) {
+        return exchange(policy("upload", uploads), limiter("upload"), false, false, () -> send(payload, name, metadata));
+      }
+      int jobID = Integer.parseInt(metadata.get("JobID"));
+      entities.uploaded(jobID);
+      try {
+        return exchange(policy("upload", uploads), limiter("upload"), false, false, () -> send(payload, name, metadata));
+      } finally {
+        entities.uploaded(jobID);
+      }
+    }
+
+    private ApiResponse<Boolean> send(Payload payload, String name, Map<String, String> metadata) throws EspritConnectionException {
+      ApiResponse<Boolean> response = new ApiResponse<>();
+      String boundary = "==" + System.currentTimeMillis() + "==";
+      ConnectionPool.Lease lease = null;
+      try {
+        // The form parts around the file are small - they are built first so the length of the
+        // whole body is known when the length of the file is.
+        StringBuilder form = new StringBuilder();
+        for (Entry<String, String> entry : metadata.entrySet()) {
+          form.append("--").append(boundary).append(io.LF);
+          form.append("Content-Disposition: form-data; name=\"").append(entry.getKey()).append("\"").append(io.LF);
+          form.append("Content-Type: text/plain; charset=").append(io.UTF_8).append(io.LF).append(io.LF);
+          form.append(io.asString(entry.getValue())).append(io.LF);
+        }
+        form.append("--").append(boundary).append(io.LF);
+        form.append("Content-Disposition: form-data; name=\"file\"; filename=\"").append(name).append("\"").append(io.LF);
+        form.append("Content-Type: ").append(HttpURLConnection.guessContentTypeFromName(name)).append(io.LF);
+        form.append("Content-Transfer-Encoding: binary").append(io.LF).append(io.LF);
+        byte[] preContent = form.toString().getBytes(io.UTF_8);
+        byte[] pstContent = (io.LF + "--" + boundary + "--" + io.LF).getBytes(io.UTF_8);
+        lease = lease(new URL(endpoint.concat(UPL_ENDPOINT)));
+        HttpURLConnection connection = lease.getConnection();
+        long length = payload.length();
+        if (length >= 0) {
+          connection.setFixedLengthStreamingMode(preContent.length + length + pstContent.length);
+        } else {
+          // Without this the whole body would be buffered (to count it) before it is sent.
+          connection.setChunkedStreamingMode(1024 * 64);
+        }
+        connection.setRequestMethod("POST");
+        Policy policy = policy("upload", uploads);
+        connection.setConnectTimeout(policy.connectTimeout);
+        connection.setReadTimeout(policy.readTimeout);
+        if (isLoggedIn()) {
+          connection.setRequestProperty("Cookie", "JSESSIONID=" + sessionid);
+        } else {
+          throw new EspritConnectionException("AUTH [Not logged in to API]");
+        }
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);;
+        connection.setDoOutput(true);
+        connection.setDoInput(true);
+        connection.connect();
+        try (OutputStream os = connection.getOutputStream()) {
+          os.write(preContent);
+          payload.writeTo(os);
+          os.write(pstContent);
+        }
+        response.setResult(connection.getResponseCode() == 204);
+        lease.release();
+        lease = null;
+      } catch (IOException e) {
+        throw new TransientException(e);
+      } finally {
+        io.close(payload);
+        if (lease != null) {
+          lease.discard();
+        }
+      }
+      return response;
+    }
+
+    private ApiResponse<InputStream> stream(int documentID, EsStream type, String version) throws EspritConnectionException {
+      ContentCache content = this.content;
+      if (content == null || !content.caches(type)) {
+        return fetch(documentID, type);
+      }
+      ApiResponse<FileChannel> cached = content.get(documentID, type, version, () -> fetch(documentID, type));
+      ApiResponse<InputStream> response = new ApiResponse<>();
+      if (cached.hasError()) {
+        response.setError(cached.error());
+      } else if (cached.hasResult()) {
+        response.setResult(ContentCache.open(cached.get()));
+      }
+      return response;
+    }
+
+    private ApiResponse<Long> download(int documentID, EsStream type, String version, Path target, boolean fsync, Progress progress) throws EspritConnectionException {
+      ContentCache content = this.content;
+      if (content == null || !content.caches(type)) {
+        return resume(documentID, type, target, fsync, progress);
+      }
+      Path temp = null;
+      try {
+        Path directory = target.toAbsolutePath().getParent();
+        temp = Files.createTempFile(directory, "." + target.getFileName(), ".part");
+        ApiResponse<Long> response;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+          response = download(documentID, type, version, channel, progress);
+          if (fsync && response.hasResult()) {
+            channel.force(true);
+          }
+        }
+        if (response.hasResult()) {
+          io.move(temp, target, fsync);
+          temp = null;
+        }
+        return response;
+      } catch (IOException e) {
+        throw new EspritConnectionException("STREAM Failed [" + documentID + "][" + type + "]", e);
+      } finally {
+        if (temp != null) {
+          try {
+            Files.deleteIfExists(temp);
+          } catch (IOException e) {
+            // Ignore.
+          }
+        }
+      }
+    }
+
+    private ApiResponse<Long> download(int documentID, EsStream type, String version, WritableByteChannel target, Progress progress) throws EspritConnectionException {
+      ContentCache content = this.content;
+      ApiResponse<Long> response = new ApiResponse<>();
+      try {
+        if (content != null && content.caches(type)) {
+          ApiResponse<FileChannel> cached = content.get(documentID, type, version, () -> fetch(documentID, type));
+          if (cached.hasError()) {
+            response.setError(cached.error());
+          } else if (cached.hasResult()) {
+            response.setResult(ContentCache.transfer(cached.get(), target, progress));
+          }
+          return response;
+        }
+        ApiResponse<InputStream> streamed = fetch(documentID, type);
+        if (streamed.hasError()) {
+          response.setError(streamed.error());
+        } else if (streamed.hasResult()) {
+          try (InputStream in = streamed.get()) {
+            response.setResult(io.copy(in, in instanceof io.AutocloseConnectionStream ? ((io.AutocloseConnectionStream) in).getLength() : -1, target, progress));
+          }
+        }
+      } catch (IOException e) {
+        throw new EspritConnectionException("STREAM Failed [" + documentID + "][" + type + "]", e);
+      }
+      return response;
+    }
+
+    /**
+     * Download to a part file next to the target - in ranges (and segments) when the server
+     * supports them, with a checkpoint file so a failed download carries on from where it stopped
+     * the next time it is made. Servers that ignore ranges get a plain download.
+     */
+    private ApiResponse<Long> resume(int documentID, EsStream type, Path target, boolean fsync, Progress progress) throws EspritConnectionException {
+      Path directory = target.toAbsolutePath().getParent();
+      Path part = directory.resolve("." + target.getFileName() + ".part"), checkpoint = directory.resolve("." + target.getFileName() + ".checkpoint");
+      ApiResponse<Long> response = new ApiResponse<>();
+      try {
+        Checkpoint state = Files.exists(part) ? Checkpoint.read(checkpoint, documentID, type) : null;
+        io.AutocloseConnectionStream first = null;
+        if (state == null) {
+          // Nothing to resume (or the part file is from another stream) - start from an empty file.
+          Files.deleteIfExists(checkpoint);
+          Files.deleteIfExists(part);
+          // The first range is the first segment (or the whole file) - nothing is read twice.
+          long head = segments > 1 ? segmentSize : -1;
+          ApiResponse<InputStream> probe = fetch(documentID, type, 0, head - 1, null);
+          if (!probe.hasResult() && !probe.hasError()) {
+            // Not found - or empty (416) which only a plain request can tell.
+            probe = fetch(documentID, type);
+          }
+          if (!probe.hasResult()) {
+            return probe.hasError() ? response.setError(probe.error()) : response;
+          }
+          first = (io.AutocloseConnectionStream) probe.get();
+          if (!first.isPartial() || first.getTotal() < 0) {
+            return response.setResult(sequential(first, part, checkpoint, target, fsync, progress));
+          }
+          long total = first.getTotal();
+          head = head < 0 ? total : Math.min(head, total);
+          state = new Checkpoint(documentID, type, total, first.getValidator(), head, head == total ? 1 : (int) Math.max(2, Math.min(segments, total / segmentSize)));
+        }
+        try {
+          download(documentID, type, state, first, part, checkpoint, fsync, progress);
+        } catch (RangeIgnoredException e) {
+          // The file changed or the server stopped honouring ranges - start again from the top.
+          Files.deleteIfExists(checkpoint);
+          ApiResponse<InputStream> streamed = fetch(documentID, type);
+          if (!streamed.hasResult()) {
+            return streamed.hasError() ? response.setError(streamed.error()) : response;
+          }
+          return response.setResult(sequential((io.AutocloseConnectionStream) streamed.get(), part, checkpoint, target, fsync, progress));
+        }
+        Files.deleteIfExists(checkpoint);
+        io.move(part, target, fsync);
+        return response.setResult(state.total);
+      } catch (IOException e) {
+        throw new EspritConnectionException("STREAM Failed [" + documentID + "][" + type + "]", e);
+      }
+    }
+
+    /**
+     * Write a whole stream to the part file (no ranges).
+     */
+    private long sequential(io.AutocloseConnectionStream stream, Path part, Path checkpoint, Path target, boolean fsync, Progress progress) throws IOException {
+      long count;
+      try (InputStream in = stream;
+          FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        count = io.copy(in, stream.getLength(), channel, progress);
+        if (fsync) {
+          channel.force(true);
+        }
+      }
+      Files.deleteIfExists(checkpoint);
+      io.move(part, target, fsync);
+      return count;
+    }
+
+    /**
+     * Download the unfinished segments of a checkpoint - the first on this thread and the others
+     * in parallel. The checkpoint is saved as the segments progress and when they fail.
+     */
+    private void download(int documentID, EsStream type, Checkpoint state, io.AutocloseConnectionStream first, Path part, Path checkpoint, boolean fsync, Progress progress)
+        throws EspritConnectionException, IOException {
+      List<Checkpoint.Segment> pending = state.pending();
+      ExecutorService workers = null;
+      try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        if (first != null && state.total > 0) {
+          // Allocate the whole file up front (sparse where the file system allows).
+          channel.write(ByteBuffer.allocate(1), state.total - 1);
+        }
+        state.save(checkpoint, channel);
+        List<Future<Void>> others = new ArrayList<>();
+        if (pending.size() > 1) {
+          workers = Executors.newFixedThreadPool(pending.size() - 1, r -> {
+            Thread thread = new Thread(r, "EspritAPI-download");
+            thread.setDaemon(true);
+            return thread;
+          });
+          for (Checkpoint.Segment segment : pending.subList(1, pending.size())) {
+            others.add(workers.submit(() -> {
+              download(documentID, type, state, segment, null, channel, checkpoint, progress);
+              return null;
+            }));
+          }
+        }
+        try {
+          if (!pending.isEmpty()) {
+            download(documentID, type, state, pending.get(0), first, channel, checkpoint, progress);
+          }
+          for (Future<Void> other : others) {
+            try {
+              other.get();
+            } catch (ExecutionException e) {
+              if (e.getCause() instanceof EspritConnectionException) {
+                throw (EspritConnectionException) e.getCause();
+              }
+              if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+              }
+              throw new EspritConnectionException("STREAM Failed [" + documentID + "][" + type + "]", e.getCause());
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new EspritConnectionException("STREAM Interrupted [" + documentID + "][" + type + "]", e);
+            }
+          }
+        } finally {
+          state.failed = true;
+          if (first != null) {
+            io.close(first);
+          }
+          if (!(Thread.currentThread().isInterrupted())) {
+            others.forEach(other -> {
+              try {
+                other.get();
+              } catch (InterruptedException | ExecutionException e) {
+                // Reported by the first failure.
+              }
+            });
+          }
+          state.save(checkpoint, channel);
+        }
+        if (fsync) {
+          channel.force(true);
+        }
+      } finally {
+        if (workers != null) {
+          workers.shutdownNow();
+        }
+      }
+    }
+
+    /**
+     * Download one segment - resuming from the last byte written when the connection drops.
+     */
+    private void download(int documentID, EsStream type, Checkpoint state, Checkpoint.Segment segment, io.AutocloseConnectionStream stream, FileChannel channel, Path checkpoint,
+        Progress progress) throws EspritConnectionException, IOException {
+      Policy policy = policy("stream", streams);
+      ByteBuffer buffer = ByteBuffer.allocate(1024 * 256);
+      for (int attempt = 0;; attempt++) {
+        io.AutocloseConnectionStream in = stream;
+        stream = null;
+        if (in == null) {
+          ApiResponse<InputStream> ranged = fetch(documentID, type, segment.position(), segment.end - 1, state.validator);
+          if (!ranged.hasResult()) {
+            throw new EspritConnectionException("STREAM Failed [" + documentID + "][" + type + "][Range " + segment.position() + "-" + (segment.end - 1) + "]");
+          }
+          in = (io.AutocloseConnectionStream) ranged.get();
+          if (!in.isPartial() || in.getOffset() != segment.position() || in.getTotal() != state.total) {
+            io.close(in);
+            throw new RangeIgnoredException();
+          }
+        }
+        try (InputStream s = in) {
+          long saved = segment.done;
+          while (segment.position() < segment.end && !state.failed) {
+            int len = s.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), segment.end - segment.position()));
+            if (len < 0) {
+              throw new IOException("Premature end of stream [" + segment.position() + "][" + segment.end + "]");
+            }
+            buffer.position(0);
+            buffer.limit(len);
+            while (buffer.hasRemaining()) {
+              channel.write(buffer, segment.position() + buffer.position());
+            }
+            segment.done += len;
+            state.progress(len, progress);
+            if (segment.done - saved >= 1024 * 1024 * 16) {
+              state.save(checkpoint, channel);
+              saved = segment.done;
+            }
+          }
+          return;
+        } catch (IOException e) {
+          if (state.failed || attempt >= policy.retries) {
+            state.failed = true;
+            throw e;
+          }
+        }
+        metrics.retries.incrementAndGet();
+        try {
+          Thread.sleep(policy.backoff(attempt));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new EspritConnectionException("HTTP Interrupted [Retry]", e);
+        }
+      }
+    }
+
+    private ApiResponse<InputStream> fetch(int documentID, EsStream type) throws EspritConnectionException {
+      return fetch(documentID, type, -1, -1, null);
+    }
+
+    /**
+     * @param from first byte of the range (-1 for the whole stream).
+     * @param to last byte of the range (-1 for the end of the stream).
+     * @param validator of the file when the range was planned (ETag or Last-Modified - can be null).
+     */
+    private ApiResponse<InputStream> fetch(int documentID, EsStream type, long from, long to, String validator) throws EspritConnectionException {
+      Policy policy = policy("stream", streams);
+      return exchange(policy, limiter("stream"), true, () -> open(documentID, type, policy, from, to, validator));
+    }
+
+    private ApiResponse<InputStream> open(int documentID, EsStream type, Policy policy, long from, long to, String validator) throws EspritConnectionException {
+      ApiResponse<InputStream> response = new ApiResponse<>();
+      ConnectionPool.Lease lease = null;
+      try {
+        lease = lease(new URL(endpoint.concat(INT_ENDPOINT).concat(type.toString()).concat("/").concat(io.asString(documentID))));
+        HttpURLConnection connection = lease.getConnection();
+        connection.setRequestMethod("GET");
+        connection.setConnectTimeout(policy.connectTimeout);
+        connection.setReadTimeout(policy.readTimeout);
+        String session = sessionid;
+        if (session != null) {
+          connection.setRequestProperty("Cookie", "JSESSIONID=" + session);
+        } else {
+          throw new EspritConnectionException("AUTH [Not logged in to API]");
+        }
+        if (from >= 0) {
+          connection.setRequestProperty("Range", "bytes=" + from + "-" + (to >= 0 ? to : ""));
+          if (validator != null) {
+            connection.setRequestProperty("If-Range", validator);
+          }
+        }
+        connection.connect();
+        int code;
+        if ((code = connection.getResponseCode()) == 200 || (code == 206 && from >= 0)) {
+          response.setResult(new io.AutocloseConnectionStream(lease, connection.getInputStream(), connection));
+        } else {
+          lease.release();
+        }
+        lease = null;
+        if (code == 401) {
+          throw new SessionExpiredException(username, session);
+        }
+        if (TransientException.is(code)) {
+          throw new TransientException(code);
+        }
+      } catch (IOException e) {
+        throw new TransientException(e);
+      } finally {
+        if (lease != null) {
+          lease.discard();
+        }
+      }
+      return response;
+    }
+
+    /**
+     * When the server last rejected a batch - batching is retried after BATCH_RETRY.
+     */
+    private transient volatile long batchesRejected;
+    private static final long BATCH_RETRY = 1000 * 60 * 10;
+    private transient int segments = 1;
+    private transient long segmentSize = 1024 * 1024 * 64;
+    private transient int compressionThreshold = 0;
+    private static final int STREAMED_BODY = 1024 * 64;
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * Write the request body - gzipped when compression is enabled and the body is at least the
+     * threshold. Small bodies are left to the connection to buffer so the headers and the body go
+     * out in one write: written separately the body waits (Nagle) for the server to acknowledge the
+     * headers, which it delays, on every call over a kept alive connection. Large bodies are
+     * streamed.
+     */
+    private void send(HttpURLConnection connection, String body) throws IOException {
+      byte[] content = body.getBytes(io.UTF_8);
+      metrics.requestBytes.addAndGet(content.length);
+      if (compressionThreshold > 0 && content.length >= compressionThreshold) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length / 4);
+        try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+          gos.write(content);
+        }
+        content = bos.toByteArray();
+        connection.setRequestProperty("Content-Encoding", "gzip");
+      }
+      metrics.requestWireBytes.addAndGet(content.length);
+      if (content.length >= STREAMED_BODY) {
+        connection.setFixedLengthStreamingMode(content.length);
+      }
+      connection.connect();
+      try (OutputStream os = connection.getOutputStream()) {
+        os.write(content);
+      }
+    }
+
+    /**
+     * The (decoded) response stream - the bytes on the wire and the decoded bytes are counted when
+     * the stream is closed.
+     */
+    private InputStream receive(HttpURLConnection connection) throws IOException {
+      InputStream is = connection.getInputStream();
+      String encoding = io.asString(connection.getContentEncoding()).trim().toLowerCase();
+      if (!encoding.equals("gzip") && !encoding.equals("deflate")) {
+        return is;
+      }
+      io.CountingInputStream wire = new io.CountingInputStream(is, null);
+      return new io.CountingInputStream(encoding.equals("gzip") ? new GZIPInputStream(wire, 1024 * 8) : new InflaterInputStream(wire), decoded -> {
+        metrics.responseWireBytes.addAndGet(wire.getCount());
+        metrics.responseBytes.addAndGet(decoded);
+      });
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void execute(List<ApiRequest<?>> commands, List<ApiResponse<?>> responses) throws EspritConnectionException {
+      // Streams and Strings are not JSON - they can't share a response.
+      JsonArray batch = new JsonArray();
+      List<Integer> batched = new ArrayList<>();
+      PathCache paths = this.paths;
+      EntityCache entities = this.entities;
+      ApiRequest<?>[] sent = new ApiRequest<?>[commands.size()];
+      boolean batches = System.currentTimeMillis() - batchesRejected >= BATCH_RETRY;
+      for (int i = 0; i < commands.size(); i++) {
+        Class<?> type = commands.get(i).getType();
+        if (batches && !type.equals(InputStream.class) && !type.equals(String.class)) {
+          sent[i] = paths == null ? commands.get(i) : paths.rewrite(commands.get(i));
+          if (entities != null) {
+            entities.changed(sent[i]);
+          }
+          JsonObject o = json.getCompact().toJsonTree(sent[i]).getAsJsonObject();
+          o.addProperty("id", i);
+          batch.add(o);
+          batched.add(i);
+        } else {
+          ((ApiResponse) responses.get(i)).copy(execute(commands.get(i)));
+        }
+      }
+      if (batched.size() == 1) {
+        int i = batched.get(0);
+        ((ApiResponse) responses.get(i)).copy(read(sent[i]));
+        if (paths != null) {
+          paths.learn(commands.get(i), sent[i], responses.get(i));
+        }
+      } else if (!batched.isEmpty()) {
+        boolean idempotent = batched.stream().allMatch(i -> sent[i].isIdempotent());
+        JsonElement answer = exchange(defaults, limiters.get("*"), idempotent, () -> post(batch));
+        if (answer == null || !answer.isJsonArray()) {
+          // Rejected as a batch: send them one at a time (but the connection is kept alive). If the
+          // server may have run it only the reads are sent again - the changes fail with its error.
+          EsError error = answer == null ? null : json.getCompact().fromJson(answer, EsError.class);
+          for (int i : batched) {
+            if (error != null && !sent[i].isIdempotent()) {
+              if (entities != null) {
+                entities.changed(sent[i]);
+              }
+              ((ApiResponse) responses.get(i)).setError(error);
+              continue;
+            }
+            ((ApiResponse) responses.get(i)).copy(read(sent[i]));
+            if (paths != null) {
+              paths.learn(commands.get(i), sent[i], responses.get(i));
+            }
+          }
+        } else {
+          JsonArray results = answer.getAsJsonArray();
+          if (entities != null) {
+            batched.forEach(i -> entities.changed(sent[i]));
+          }
+          for (JsonElement e : results) {
+            JsonObject raw = e.getAsJsonObject();
+            if (raw.has("id") && !raw.get("id").isJsonNull()) {
+              int i = raw.get("id").getAsInt();
+              if (i >= 0 && i < commands.size() && sent[i] != null) {
+                bind(raw, (ApiRequest) sent[i], (ApiResponse) responses.get(i));
+                if (paths != null) {
+                  paths.learn(commands.get(i), sent[i], responses.get(i));
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Post a JSON-RPC batch - returns the results array, null if the server rejected the batch
+     * (nothing was run) or an error object if it failed in some other way (it may have been run).
+     * Batching is only switched off (for BATCH_RETRY) when the server positively rejects it: a
+     * single error object in place of the array or a status saying the request isn't understood.
+     */
+    private JsonElement post(JsonArray batch) throws EspritConnectionException {
+      ConnectionPool.Lease lease = null;
+      try {
+        lease = lease(new URL(endpoint.concat(RPC_ENDPOINT)));
+        HttpURLConnection connection = lease.getConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("Accept", "*/*");
+        connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        connection.setConnectTimeout(defaults.connectTimeout);
+        connection.setReadTimeout(defaults.readTimeout);
+        String session = sessionid;
+        if (session != null) {
+          connection.setRequestProperty("Cookie", "JSESSIONID=" + session);
+        } else {
+          throw new EspritConnectionException("AUTH Failed [Not called][Not logged in to API]");
+        }
+        connection.setDoInput(true);
+        connection.setDoOutput(true);
+        send(connection, json.getCompact().toJson(batch));
+        int code;
+        JsonElement results = null;
+        if ((code = connection.getResponseCode()) == 200) {
+          JsonElement raw;
+          try (JsonReader reader = io.reader(receive(connection))) {
+            raw = json.getCompact().fromJson(reader, JsonElement.class);
+          }
+          if (raw != null && raw.isJsonArray()) {
+            results = raw;
+          } else if (raw != null && raw.isJsonObject() && raw.getAsJsonObject().has("error")) {
+            batchesRejected = System.currentTimeMillis();
+          } else {
+            results = failed("BATCH", "Not a batch response");
+          }
+        } else if (code == 400 || code == 404 || code == 405 || code == 415 || code == 501) {
+          batchesRejected = System.currentTimeMillis();
+        } else {
+          results = failed(Integer.toString(code), "HTTP Failed [" + code + "][Batch]");
+        }
+        lease.release();
+        lease = null;
+        if (code == 401) {
+          throw new SessionExpiredException(username, session);
+        }
+        if (TransientException.is(code)) {
+          throw new TransientException(code);
+        }
+        return results;
+      } catch (MalformedJsonException e) {
+        throw new EspritConnectionException("HTTP Exception.", e);
+      } catch (IOException e) {
+        throw new TransientException(e);
+      } catch (JsonParseException e) {
+        throw new EspritConnectionException("HTTP Exception.", e);
+      } finally {
+        if (lease != null) {
+          lease.discard();
+        }
+      }
+    }
+
+    private JsonObject failed(String code, String message) {
+      JsonObject error = new JsonObject();
+      error.addProperty("code", code);
+      error.addProperty("message", message);
+      return error;
+    }
+
+    /**
+     * Bind the response in a single pass - the result is read straight from the stream into the
+     * target type (no String or JsonObject copy of the body is made).
+     */
+    private <T> void bind(JsonReader reader, ApiRequest<T> command, ApiResponse<T> response) throws IOException {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if ("result".equals(name)) {
+          response.setResult(json.getCompact().fromJson(reader, command.getType()));
+        } else if ("error".equals(name)) {
+          response.setError(json.getCompact().fromJson(reader, EsError.class));
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    }
+
+    private <T> void bind(JsonObject raw, ApiRequest<T> command, ApiResponse<T> response) {
+      if (raw.has("result")) {
+        response.setResult(json.getCompact().fromJson(raw.get("result"), command.getType()));
+      }
+      if (raw.has("error")) {
+        response.setError(json.getCompact().fromJson(raw.get("error"), EsError.class));
+      }
+    }
+
+    private <T> ApiResponse<T> execute(ApiRequest<T> command) throws EspritConnectionException {
+      PathCache paths = this.paths;
+      EntityCache entities = this.entities;
+      ApiRequest<T> sent = paths == null ? command : paths.rewrite(command);
+      ApiResponse<T> response = entities == null ? read(sent) : entities.get(sent, () -> read(sent));
+      if (paths != null) {
+        paths.learn(command, sent, response);
+      }
+      return response;
+    }
+
+    /**
+     * Reads go through the reference cache and are coalesced.
+     */
+    private <T> ApiResponse<T> read(ApiRequest<T> command) throws EspritConnectionException {
+      if (!command.isIdempotent() || command.getType().equals(InputStream.class)) {
+        return dispatch(command);
+      }
+      String key = command.getMethod() + "|" + command.getType().getName() + "|" + json.getCompact().toJson(new TreeMap<>(command.params));
+      ReferenceCache cache = this.cache;
+      if (cache != null && cache.caches(command.getMethod())) {
+        return cache.get(command.getMethod(), key, () -> coalesce(command, key));
+      }
+      return coalesce(command, key);
+    }
+
+    /**
+     * Identical reads in flight share one call (and its response).
+     */
+    private <T> ApiResponse<T> coalesce(ApiRequest<T> command, String key) throws EspritConnectionException {
+      if (!coalescing) {
+        return dispatch(command);
+      }
+      CompletableFuture<ApiResponse<?>> call = new CompletableFuture<>(), shared = inflight.putIfAbsent(key, call);
+      if (shared != null) {
+        metrics.coalesced.incrementAndGet();
+        return join(shared);
+      }
+      try {
+        ApiResponse<T> response = dispatch(command);
+        call.complete(response);
+        return response;
+      } catch (EspritConnectionException | RuntimeException e) {
+        call.completeExceptionally(e);
+        throw e;
+      } finally {
+        inflight.remove(key, call);
+      }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private <T> ApiResponse<T> join(CompletableFuture<ApiResponse<?>> shared) throws EspritConnectionException {
+      try {
+        return new ApiResponse<T>().copy((ApiResponse) shared.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new EspritConnectionException("HTTP Interrupted [Shared call]", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof EspritConnectionException) {
+          throw (EspritConnectionException) e.getCause();
+        }
+        throw (RuntimeException) e.getCause();
+      }
+    }
+
+    private <T> ApiResponse<T> dispatch(ApiRequest<T> command) throws EspritConnectionException {
+      Policy policy = policy(command.getMethod(), defaults);
+      return exchange(policy, limiter(command.getMethod()), command.isIdempotent(), () -> call(command, policy));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> ApiResponse<T> call(ApiRequest<T> command, Policy policy) throws EspritConnectionException {
+      ApiResponse<T> response = new ApiResponse<>();
+      ConnectionPool.Lease lease = null;
+      boolean streaming = command.getType().equals(InputStream.class);
+      try {
+        lease = lease(new URL(endpoint.concat(RPC_ENDPOINT)));
+        HttpURLConnection connection = lease.getConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("Accept", "*/*");
+        connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        connection.setConnectTimeout(policy.connectTimeout);
+        connection.setReadTimeout(policy.readTimeout);
+        String session = "admin.login".equals(command.getMethod()) ? null : sessionid;
+        if (session != null) {
+          connection.setRequestProperty("Cookie", "JSESSIONID=" + session);
+        } else {
+          if ("admin.login".equals(command.getMethod())) {
+            connection.setRequestProperty("Authorization", "Basic " + auth);
+          } else {
+            throw new EspritConnectionException("AUTH Failed [Not called][Not logged in to API]");
+          }
+        }
+        connection.setDoInput(true);
+        connection.setDoOutput(true);
+        send(connection, json.getCompact().toJson(command));
+        int code;
         if ((code = connection.getResponseCode()) == 200) {
           if (streaming) {
-            response.setResult((T) new io.AutocloseConnectionStream(connection, connection.getInputStream()));
+            response.setResult((T) new io.AutocloseConnectionStream(lease, receive(connection)));
           } else {
             if (command.getType().equals(String.class)) {
-              response.setResult((T) io.asString(connection.getInputStream()));
+              response.setResult((T) io.asString(receive(connection)));
             } else {
-              JsonObject raw = json.getCompact().fromJson(io.asString(connection.getInputStream()), JsonObject.class);
-              if (raw.has("result")) {
-                response.setResult(json.getCompact().fromJson(raw.get("result"), command.getType()));
-              }
-              if (raw.has("error")) {
-                response.setError(json.getCompact().fromJson(raw.get("error"), EsError.class));
+              try (JsonReader reader = io.reader(receive(connection))) {
+                bind(reader, command, response);
               }
             }
           }
         } else if (code == 401) {
+          lease.release();
+          lease = null;
+          // No point logging in again just to log out.
+          if (session != null && !"admin.logout".equals(command.getMethod())) {
+            throw new SessionExpiredException(username, session);
+          }
           throw new EspritConnectionException("AUTH Failed [" + username + "]");
+        } else if (TransientException.is(code)) {
+          throw new TransientException(code);
         } else {
           throw new EspritConnectionException("HTTP Failed [" + code + "]");
         }
-      } catch (IOException e) {
+        if (!streaming) {
+          lease.release();
+        }
+        lease = null;
+      } catch (MalformedJsonException e) {
         throw new EspritConnectionException("HTTP Exception.", e);
+      } catch (IOException e) {
+        throw new TransientException(e);
       } finally {
-        if (connection != null && !streaming) {
-          connection.disconnect();
+        if (lease != null) {
+          // The call failed - the connection state is unknown.
+          lease.discard();
         }
       }
       return response;
@@ -1769,6 +3357,10 @@ public class EspritAPI implements Closeable {
     private static final String UTF_8 = "UTF-8";
     private static final String LF = "\r\n";
 
+    protected static JsonReader reader(InputStream is) throws IOException {
+      return new JsonReader(new BufferedReader(new InputStreamReader(is, UTF_8), 1024 * 8));
+    }
+
     protected static String asString(InputStream is) throws IOException {
       ByteArrayOutputStream bos = new ByteArrayOutputStream();
       copy(is, bos, true);
@@ -1798,6 +3390,46 @@ public class EspritAPI implements Closeable {
       }
     }
 
+    /**
+     * Copy a stream to a channel through a large buffer - filled before each write so a slow
+     * trickle of small network reads doesn't turn into as many small writes.
+     * 
+     * @return the number of bytes copied.
+     */
+    protected static long copy(InputStream is, long length, WritableByteChannel target, Progress progress) throws IOException {
+      byte[] buffer = new byte[1024 * 1024];
+      ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+      long count = 0;
+      int len = 0;
+      while (len >= 0) {
+        int filled = 0;
+        while (filled < buffer.length && (len = is.read(buffer, filled, buffer.length - filled)) >= 0) {
+          filled += len;
+        }
+        wrapped.position(0);
+        wrapped.limit(filled);
+        while (wrapped.hasRemaining()) {
+          target.write(wrapped);
+        }
+        count += filled;
+        if (progress != null && filled > 0) {
+          progress.update(count, length);
+        }
+      }
+      return count;
+    }
+
+    /**
+     * Force a directory entry (a rename) to the disk - not every platform can.
+     */
+    protected static void force(Path directory) {
+      try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+        channel.force(true);
+      } catch (IOException e) {
+        // Not supported (Windows) - the rename is as durable as the file system makes it.
+      }
+    }
+
     protected static String join(String delimiter, Collection<?> c) {
       StringBuilder builder = new StringBuilder();
       Iterator<?> i = c.iterator();
@@ -1815,24 +3447,166 @@ public class EspritAPI implements Closeable {
       return obj == null ? nullValue : obj.toString();
     }
 
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+([0-9]+)-([0-9]+)/(?:([0-9]+)|\\*)");
+
+    /**
+     * Rename a file to the target (atomically) - forcing the directory entry when asked to.
+     */
+    protected static void move(Path file, Path target, boolean fsync) throws IOException {
+      Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      if (fsync) {
+        force(target.toAbsolutePath().getParent());
+      }
+    }
+
     /**
-     * A stream that disconnection the Http URL Connection when it is closed.
+     * A stream that returns the pooled connection when it is closed.
      * 
      * @author Jason Keeber <jason@keeber.org>
      *
      */
     protected static class AutocloseConnectionStream extends FilterInputStream {
-      private transient HttpURLConnection connection;
+      private transient ConnectionPool.Lease lease;
+      private final AtomicReference<Runnable> closed = new AtomicReference<>();
+      private final long length, offset, total;
+      private final boolean partial;
+      private final String validator;
+
+      protected AutocloseConnectionStream(ConnectionPool.Lease lease, InputStream in) {
+        super(in);
+        this.lease = lease;
+        this.length = this.total = -1;
+        this.offset = 0;
+        this.partial = false;
+        this.validator = null;
+      }
+
+      protected AutocloseConnectionStream(ConnectionPool.Lease lease, InputStream in, HttpURLConnection connection) throws IOException {
+        super(in);
+        this.lease = lease;
+        this.length = connection.getContentLengthLong();
+        this.partial = connection.getResponseCode() == 206;
+        Matcher range = CONTENT_RANGE.matcher(asString(connection.getHeaderField("Content-Range"), ""));
+        if (partial && range.matches()) {
+          this.offset = Long.parseLong(range.group(1));
+          this.total = range.group(3) == null ? -1 : Long.parseLong(range.group(3));
+        } else {
+          this.offset = 0;
+          this.total = partial ? -1 : length;
+        }
+        String etag = connection.getHeaderField("ETag");
+        // Weak ETags can't be used with If-Range.
+        this.validator = etag != null && !etag.startsWith("W/") ? etag : connection.getHeaderField("Last-Modified");
+      }
+
+      /**
+       * @return the content length of the response (-1 if unknown).
+       */
+      protected long getLength() {
+        return length;
+      }
+
+      /**
+       * @return true if the response is a range (206) of the file.
+       */
+      protected boolean isPartial() {
+        return partial;
+      }
+
+      /**
+       * @return the position of the first byte of the response in the file.
+       */
+      protected long getOffset() {
+        return offset;
+      }
+
+      /**
+       * @return the length of the whole file (-1 if unknown).
+       */
+      protected long getTotal() {
+        return total;
+      }
+
+      /**
+       * @return the ETag or Last-Modified date of the file (can be null).
+       */
+      protected String getValidator() {
+        return validator;
+      }
+
+      /**
+       * @param closed run (once) when the stream is closed.
+       */
+      protected void onClose(Runnable closed) {
+        this.closed.set(closed);
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          lease.release();
+          Runnable closed = this.closed.getAndSet(null);
+          if (closed != null) {
+            closed.run();
+          }
+        }
+      }
 
-      protected AutocloseConnectionStream(HttpURLConnection connection, InputStream in) {
+    }
+
+    /**
+     * A stream that counts the bytes read through it - the count is reported once on close.
+     */
+    protected static class CountingInputStream extends FilterInputStream {
+      private transient LongConsumer onClose;
+      private long count = 0;
+
+      protected CountingInputStream(InputStream in, LongConsumer onClose) {
         super(in);
-        this.connection = connection;
+        this.onClose = onClose;
+      }
+
+      protected long getCount() {
+        return count;
+      }
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          count++;
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+          count += n;
+        }
+        return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
       }
 
       @Override
       public void close() throws IOException {
-        super.close();
-        connection.disconnect();
+        try {
+          super.close();
+        } finally {
+          if (onClose != null) {
+            onClose.accept(count);
+            onClose = null;
+          }
+        }
       }
 
     }
@@ -1840,20 +3614,30 @@ public class EspritAPI implements Closeable {
   }
 
   public static class json {
-    private static Gson compact = null;
-    private static Gson pretty = null;
+    /**
+     * The ES date format (yyyy-MM-dd'T'HH:mm:ssXXX) - formatters are immutable, so one instance is
+     * shared by every thread. Dates are written in the system time zone and parsed with the offset
+     * they carry (fractional seconds are accepted).
+     */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssXXX").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter DATE_PARSE = new DateTimeFormatterBuilder().append(DateTimeFormatter.ISO_LOCAL_DATE).appendLiteral('T').appendPattern("HH:mm:ss").optionalStart()
+        .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true).optionalEnd().appendOffset("+HH:MM", "Z").toFormatter();
+    // Gson instances are immutable and thread safe - created once when the class is initialized.
+    private static final Gson compact = detaultBuilder().create();
+    private static final Gson pretty = detaultBuilder().setPrettyPrinting().create();
 
     public static GsonBuilder detaultBuilder() {
       return new GsonBuilder().registerTypeAdapter(Date.class, new DateAdapter()).registerTypeAdapter(CmykColor.class, new CmykColorAdapter()).registerTypeAdapter(Path2D.Float.class, new PathAdapter()).registerTypeAdapter(Rectangle2D.Float.class,
-          new Rectangle2DAdapter());
+          new Rectangle2DAdapter()).registerTypeAdapter(Instant.class, new TemporalAdapter<>(Instant::from)).registerTypeAdapter(OffsetDateTime.class, new TemporalAdapter<>(OffsetDateTime::from))
+          .registerTypeAdapter(ZonedDateTime.class, new TemporalAdapter<>(ZonedDateTime::from)).registerTypeAdapterFactory(JsonBinding.FACTORY).registerTypeAdapterFactory(EsNote.JSON_ADAPTER);
     }
 
     public static Gson getCompact() {
-      return compact == null ? compact = detaultBuilder().create() : compact;
+      return compact;
     }
 
     public static Gson getPretty() {
-      return pretty == null ? pretty = detaultBuilder().setPrettyPrinting().create() : pretty;
+      return pretty;
     }
 
     public static void print(Object o) {
@@ -1872,17 +3656,42 @@ public class EspritAPI implements Closeable {
      *
      */
     private static class DateAdapter implements JsonDeserializer<Date>, JsonSerializer<Date> {
-      // private DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
 
       @Override
       public JsonElement serialize(Date src, Type typeOfSrc, JsonSerializationContext context) {
-        return new JsonPrimitive(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX").format(src));
+        return new JsonPrimitive(DATE_FORMAT.format(src.toInstant()));
       }
 
       @Override
       public Date deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
         try {
-          return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX").parse(json.getAsString());
+          return Date.from(Instant.from(DATE_PARSE.parse(json.getAsString())));
+        } catch (Exception e) {
+          return null;
+        }
+      }
+
+    }
+
+    /**
+     * Adapter for the java.time types - same format as {@link DateAdapter}.
+     */
+    private static class TemporalAdapter<T extends TemporalAccessor> implements JsonDeserializer<T>, JsonSerializer<T> {
+      private final Function<TemporalAccessor, T> from;
+
+      private TemporalAdapter(Function<TemporalAccessor, T> from) {
+        this.from = from;
+      }
+
+      @Override
+      public JsonElement serialize(T src, Type typeOfSrc, JsonSerializationContext context) {
+        return new JsonPrimitive(DATE_FORMAT.format(src));
+      }
+
+      @Override
+      public T deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
+        try {
+          return from.apply(DATE_PARSE.parse(json.getAsString()));
         } catch (Exception e) {
           return null;
         }
@@ -2027,6 +3836,250 @@ public class EspritAPI implements Closeable {
 
   }
 
+  /**
+   * The server rejected the session (HTTP 401) - carries the session that was used so only one
+   * thread replaces it.
+   */
+  private static class SessionExpiredException extends EspritConnectionException {
+    private static final long serialVersionUID = 1L;
+    private final String session;
+
+    private SessionExpiredException(String username, String session) {
+      super("AUTH Failed [" + username + "][Session expired]");
+      this.session = session;
+    }
+
+  }
+
+  /**
+   * A failure that may succeed if tried again - the connection failed or timed out, or the server
+   * (or a proxy in front of it) is unavailable.
+   */
+  private static class TransientException extends EspritConnectionException {
+    private static final long serialVersionUID = 1L;
+
+    private TransientException(IOException e) {
+      super("HTTP Exception.", e);
+    }
+
+    private TransientException(int code) {
+      super("HTTP Failed [" + code + "]");
+    }
+
+    private static boolean is(int code) {
+      return code == 502 || code == 503 || code == 504;
+    }
+
+  }
+
+  /**
+   * The server answered a range request with the whole file (or a different file).
+   */
+  private static class RangeIgnoredException extends EspritConnectionException {
+    private static final long serialVersionUID = 1L;
+
+    private RangeIgnoredException() {
+      super("HTTP Range ignored");
+    }
+
+  }
+
+  /**
+   * The state of a ranged download - saved next to the part file so a failed download can carry on
+   * from where it stopped.
+   */
+  private static class Checkpoint {
+    private static final String HEADER = "esprit-checkpoint 2";
+    private final int documentID;
+    private final EsStream type;
+    private final long total;
+    private final String validator;
+    private final List<Segment> segments = new ArrayList<>();
+    private final AtomicLong transferred = new AtomicLong();
+    private volatile boolean failed;
+
+    private Checkpoint(int documentID, EsStream type, long total, String validator) {
+      this.documentID = documentID;
+      this.type = type;
+      this.total = total;
+      this.validator = validator;
+    }
+
+    /**
+     * Plan a download - the first segment is the given head, the rest of the file is split evenly.
+     */
+    private Checkpoint(int documentID, EsStream type, long total, String validator, long head, int count) {
+      this(documentID, type, total, validator);
+      segments.add(new Segment(0, head, 0));
+      long size = (total - head) / Math.max(1, count - 1);
+      for (int i = 0; i < count - 1; i++) {
+        segments.add(new Segment(head + i * size, i == count - 2 ? total : head + (i + 1) * size, 0));
+      }
+    }
+
+    private List<Segment> pending() {
+      List<Segment> pending = new ArrayList<>();
+      for (Segment segment : segments) {
+        transferred.addAndGet(segment.done);
+        if (segment.position() < segment.end) {
+          pending.add(segment);
+        }
+      }
+      return pending;
+    }
+
+    private void progress(int len, Progress progress) {
+      long done = transferred.addAndGet(len);
+      if (progress != null) {
+        synchronized (this) {
+          progress.update(done, total);
+        }
+      }
+    }
+
+    /**
+     * Save the checkpoint - after the bytes it records are forced to the part file. The progress is
+     * read before the force (segments carry on writing) so only forced bytes are recorded.
+     */
+    private synchronized void save(Path checkpoint, FileChannel channel) throws IOException {
+      long[] done = new long[segments.size()];
+      for (int i = 0; i < done.length; i++) {
+        done[i] = segments.get(i).done;
+      }
+      channel.force(false);
+      StringBuilder out = new StringBuilder(HEADER).append("\n").append(documentID).append(" ").append(type).append("\n").append(total).append("\n");
+      out.append(io.asString(validator, "")).append("\n");
+      for (int i = 0; i < done.length; i++) {
+        out.append(segments.get(i).start).append(" ").append(segments.get(i).end).append(" ").append(done[i]).append("\n");
+      }
+      Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+      Files.write(temp, out.toString().getBytes(StandardCharsets.UTF_8));
+      Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the saved checkpoint of the stream (null if there isn't one, it can't be read or it is
+     *         for another stream).
+     */
+    private static Checkpoint read(Path checkpoint, int documentID, EsStream type) {
+      try {
+        List<String> lines = Files.readAllLines(checkpoint, StandardCharsets.UTF_8);
+        if (lines.size() < 5 || !lines.get(0).equals(HEADER) || !lines.get(1).equals(documentID + " " + type)) {
+          return null;
+        }
+        Checkpoint state = new Checkpoint(documentID, type, Long.parseLong(lines.get(2)), lines.get(3).isEmpty() ? null : lines.get(3));
+        for (String line : lines.subList(4, lines.size())) {
+          String[] values = line.split(" ");
+          state.segments.add(new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2])));
+        }
+        return state;
+      } catch (IOException | RuntimeException e) {
+        return null;
+      }
+    }
+
+    private static class Segment {
+      private final long start, end;
+      private volatile long done;
+
+      private Segment(long start, long end, long done) {
+        this.start = start;
+        this.end = end;
+        this.done = done;
+      }
+
+      private long position() {
+        return start + done;
+      }
+
+    }
+
+  }
+
+  /**
+   * The file part of an upload.
+   */
+  private interface Payload extends Closeable {
+
+    /**
+     * @return the length (-1 when unknown).
+     */
+    long length();
+
+    void writeTo(OutputStream os) throws IOException;
+
+    static Payload from(InputStream in, Optional<Long> length) {
+      return new Payload() {
+
+        @Override
+        public long length() {
+          return length.orElse(-1L);
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+          byte[] buffer = new byte[1024 * 256];
+          int len;
+          while ((len = in.read(buffer)) >= 0) {
+            os.write(buffer, 0, len);
+          }
+        }
+
+        @Override
+        public void close() throws IOException {
+          in.close();
+        }
+
+      };
+    }
+
+    static Payload from(Path file, Progress progress) throws IOException {
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+      long size = channel.size();
+      return new Payload() {
+
+        @Override
+        public long length() {
+          return size;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+          ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+          long position = 0;
+          int len;
+          while (position < size && (len = channel.read(buffer, position)) >= 0) {
+            os.write(buffer.array(), 0, len);
+            position += len;
+            buffer.clear();
+            if (progress != null) {
+              progress.update(position, size);
+            }
+          }
+          if (position != size) {
+            throw new IOException("File changed during upload [" + file + "][" + position + "][" + size + "]");
+          }
+        }
+
+        @Override
+        public void close() throws IOException {
+          channel.close();
+        }
+
+      };
+    }
+
+  }
+
+  /**
+   * One HTTP exchange of the transport.
+   */
+  private interface Exchange<R> {
+
+    R call() throws EspritConnectionException;
+
+  }
+
   public static class ApiRequest<T> {
     private Map<String, Object> params = new HashMap<>();
     private String method;
@@ -2037,23 +4090,23 @@ public class EspritAPI implements Closeable {
       this.type = type;
     }
 
-    protected static <T> ApiRequest<T> from(String method, Class<T> type) {
+    public static <T> ApiRequest<T> from(String method, Class<T> type) {
       return new ApiRequest<T>(method, type);
     }
 
-    protected static <T> ApiRequest<T> from(String method, Class<T> type, EsClassable ref) {
+    public static <T> ApiRequest<T> from(String method, Class<T> type, EsClassable ref) {
       return from(method, type, (EsReferenceable) ref).put("class", ref.getEsclass());
     }
 
-    protected static <T> ApiRequest<T> from(String method, Class<T> type, EsReferenceable ref) {
+    public static <T> ApiRequest<T> from(String method, Class<T> type, EsReferenceable ref) {
       return new ApiRequest<T>(method, type).put("ID", ref.getID()).put("path", ref.getPath());
     }
 
-    protected static ApiRequest<JsonObject> from(String method) {
+    public static ApiRequest<JsonObject> from(String method) {
       return new ApiRequest<JsonObject>(method, JsonObject.class);
     }
 
-    protected ApiRequest<T> put(String key, Object value) {
+    public ApiRequest<T> put(String key, Object value) {
       if (key.toLowerCase().endsWith("id") && value != null && value.toString().matches("[0-9]+")) {
         value = value.toString();
       }
@@ -2075,9 +4128,37 @@ public class EspritAPI implements Closeable {
       return type;
     }
 
+    protected Map<String, Object> getParams() {
+      return params;
+    }
+
     public String getMethod() {
       return method;
     }
+
+    /**
+     * True for read only methods - these are safe to send again (after a relogin or a failure).
+     * 
+     * @return true if the request can be replayed.
+     */
+    public boolean isIdempotent() {
+      return isIdempotent(method);
+    }
+
+    private static final Set<String> READS = new HashSet<>(Arrays.asList("production.executeSQL", "production.select", "production.search", "production.smartView", "production.colorSpaces",
+        "production.viewingConditions", "production.workflows", "production.projectTemplates", "production.toApprove", "document.approvalStatus", "document.dialogueView", "document.historyReport",
+        "document.noteReport", "directory.search", "directory.roles", "directory.userProfiles", "monitoring.activity", "workflow.exportWFL"));
+
+    /**
+     * True for read only methods - the "get" and "list" methods plus the known queries.
+     * 
+     * @param method the API method name (eg: "document.get").
+     * @return true if the method can be replayed.
+     */
+    public static boolean isIdempotent(String method) {
+      String name = method.substring(method.indexOf('.') + 1);
+      return name.startsWith("get") || name.startsWith("list") || READS.contains(method);
+    }
   }
 
   /**
@@ -2101,6 +4182,12 @@ public class EspritAPI implements Closeable {
       return this;
     }
 
+    protected ApiResponse<T> copy(ApiResponse<T> other) {
+      this.result = other.result;
+      this.error = other.error;
+      return this;
+    }
+
     public EsError error() {
       return error.get();
     }
@@ -1,48 +1,86 @@
 package org.keeber.esprit;
 
 import java.io.Closeable;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.keeber.esprit.EspritAPI.EspritConnectionException;
 
 /**
- * This class manages a single EspritAPI instance.
- * 
+ * This class manages a pool of logged in EspritAPI instances (each one is a server session).
+ *
+ * <p>
+ * The {@link #acquireAPI()} method basically always returns a logged in EspritAPI instance - which
+ * is then returned with the {@link #releaseAPI(EspritAPI)} method.
+ *
  * <p>
- * The {@link #acquireConnection()} method basically always returns a logged in EspritAPI instance -
- * which is then returned with the {@link #releaseConnection()} method.
- * 
+ * Sessions are opened on demand up to the maximum pool size, each session is lent to at most
+ * {@link #setMaxInFlight(int) max in flight} callers at a time and callers wait (in arrival order)
+ * when every session is busy. Once a session has been idle for the {@link #connectionTimeout
+ * connection timeout} it is logged out - unless the pool would drop below its minimum size. The
+ * EspritAPI instance returned from this class is special insomuch that closing it will also release
+ * it. This allows it to be used in a try with resources block.
+ *
  * <p>
- * Once an EspritAPI instance has been released it is logged out after the @link
- * {@link #connectionTimeout connection timeout} has expired. The EspritAPI instance returned from
- * this class is special insomuch that closing it will also release the connection. This allows it
- * to be used in a try with resources block.
- * 
+ * The defaults (one session, no in flight limit) behave like the original single session manager.
+ *
  * <p>
  * This class ensures that a 'hot' connection is always available without worrying about sessions
  * and timeouts.
- * 
+ *
  * @author Jason Keeber <jason@keeber.org>
  *
  */
 public class EspritAPIManager {
   private transient Logger logger;
-  private transient ExecutorService connPool;
-  private ManagedEspritAPI api;
-  private transient final AtomicInteger count = new AtomicInteger();
-  private int connectionTimeout = 0;
+  private final String endpoint, auth;
+  private final ReentrantLock lock = new ReentrantLock(true);
+  private final Condition available = lock.newCondition();
+  private final List<ManagedEspritAPI> sessions = new ArrayList<>();
+  private final transient ThreadLocal<Deque<ManagedEspritAPI>> borrowed = ThreadLocal.withInitial(ArrayDeque::new);
+  private final Metrics metrics = new Metrics();
+  private ConnectionPool pool = new ConnectionPool();
+  private ReferenceCache cache;
+  private EntityCache entities;
+  private int connectionTimeout = 0, minSessions = 0, maxSessions = 1, maxInFlight = Integer.MAX_VALUE;
+  private long acquireTimeout = 1000 * 30;
+  private transient ScheduledFuture<?> expiry;
+
+  /**
+   * One daemon thread runs the idle expiry for every manager.
+   */
+  private static final ScheduledExecutorService scheduler;
+
+  static {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "EspritAPIManager-expiry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    scheduler = executor;
+  }
 
 
   public final class ManagedEspritAPI extends EspritAPI implements Closeable {
+    private transient int inFlight;
+    /**
+     * The borrowed deque of the acquiring thread for each lease (guarded by the manager lock).
+     */
+    private final transient List<Deque<ManagedEspritAPI>> leases = new ArrayList<>();
+    private transient long idleSince = System.currentTimeMillis();
 
     public ManagedEspritAPI(String endpoint, String auth) {
       super(endpoint, auth);
@@ -56,20 +94,42 @@ public class EspritAPIManager {
       super(endpoint, username, password);
     }
 
+    /**
+     * Login (once) for all of the callers sharing this session.
+     */
+    private synchronized void open() throws EspritConnectionException {
+      if (!isLoggedIn()) {
+        getLogger().fine("[Connection] Opening...");
+        long start = System.currentTimeMillis();
+        login().get();
+        metrics.logins.incrementAndGet();
+        getLogger().fine("[Connection] Open [" + (System.currentTimeMillis() - start) + "]ms.");
+      }
+    }
+
+    private synchronized void shut() {
+      if (isLoggedIn()) {
+        getLogger().fine("[Connection] Closing...");
+        logout();
+        metrics.logouts.incrementAndGet();
+        getLogger().fine("[Connection] Closed.");
+      }
+    }
+
     @Override
     public void close() {
-      releaseAPI();
+      releaseAPI(this);
     }
 
   }
 
   public EspritAPIManager(String endpoint, String username, String password) {
-    this.api = new ManagedEspritAPI(endpoint, username, password);
-    init();
+    this(endpoint, Base64.getEncoder().encodeToString((username + ":" + password).getBytes()));
   }
 
   public EspritAPIManager(String endpoint, String auth) {
-    this.api = new ManagedEspritAPI(endpoint, auth);
+    this.endpoint = endpoint;
+    this.auth = auth;
     init();
   }
 
@@ -85,67 +145,214 @@ public class EspritAPIManager {
 
   /**
    * Returns an open EspritAPI connection. This connection should be 'returned' using
-   * {@link #releaseConnection()}. Once the manager is holding 0 connections (after the connection
-   * timeout) - it will close the connection to Esprit.
-   * 
+   * {@link #releaseAPI(EspritAPI)}. Sessions that stay idle (after the connection timeout) are
+   * logged out of Esprit.
+   *
    * @return An logged in EspritAPI connection.
-   * @throws EspritConnectionException
+   * @throws EspritConnectionException when a session can't be opened or none is free within the
+   *         acquire timeout.
    */
   public ManagedEspritAPI acquireAPI() throws EspritConnectionException {
-    synchronized (count) {
-      if (count.get() == 0) {
-        try {
-          EspritConnectionException e = getConnectionQueue().submit(new ConnectionWorker(true)).get();
-          if (e != null) {
-            throw e;
+    long start = System.nanoTime();
+    ManagedEspritAPI api = borrow(start);
+    try {
+      api.open();
+    } catch (EspritConnectionException | RuntimeException e) {
+      getLogger().log(Level.SEVERE, "[Connection] Error acquiring.", e);
+      discard(api);
+      throw e;
+    }
+    metrics.acquired(System.nanoTime() - start);
+    lock.lock();
+    try {
+      Deque<ManagedEspritAPI> deque = borrowed.get();
+      deque.push(api);
+      api.leases.add(deque);
+    } finally {
+      lock.unlock();
+    }
+    return api;
+  }
+
+  /**
+   * Reserve the least busy session - opening a new one when every session is busy and the pool
+   * isn't full - or wait for one to be released. Of the idle sessions the most recently released is
+   * reused so the surplus ones age out (rather than every session being kept barely alive).
+   */
+  private ManagedEspritAPI borrow(long start) throws EspritConnectionException {
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(acquireTimeout);
+    lock.lock();
+    try {
+      while (true) {
+        ManagedEspritAPI best = null;
+        for (ManagedEspritAPI api : sessions) {
+          if (api.inFlight < maxInFlight && (best == null || api.inFlight < best.inFlight || (api.inFlight == best.inFlight && api.idleSince > best.idleSince))) {
+            best = api;
           }
-        } catch (InterruptedException | ExecutionException e) {
-          getLogger().log(Level.SEVERE, "[Connection] Error acquiring.", e);
+        }
+        if ((best == null || best.inFlight > 0) && sessions.size() < maxSessions) {
+          best = new ManagedEspritAPI(endpoint, auth);
+          best.setConnectionPool(pool).setReferenceCache(cache).setEntityCache(entities);
+          sessions.add(best);
+        }
+        if (best != null) {
+          best.inFlight++;
+          return best;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          metrics.timeouts.incrementAndGet();
+          throw new EspritConnectionException("POOL Exhausted [" + sessions.size() + "][" + maxInFlight + "]");
+        }
+        try {
+          available.awaitNanos(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new EspritConnectionException("POOL Interrupted", e);
         }
       }
-      count.incrementAndGet();
+    } finally {
+      lock.unlock();
     }
-    return api;
   }
 
   /**
-   * This should be called after a connection instance (obtained with {@link #acquireConnection()})
-   * is no longer needed - OR you can logout / close the connection instance.
-   * 
+   * Drop a session that failed to open - the other callers sharing it retry the login themselves.
    */
-  public void releaseAPI() {
-    if (connectionTimeout > 0) {
-      new Timer(false).schedule(new TimerTask() {
+  private void discard(ManagedEspritAPI api) {
+    lock.lock();
+    try {
+      api.inFlight--;
+      if (api.inFlight <= 0) {
+        sessions.remove(api);
+      }
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
 
-        @Override
-        public void run() {
-          releaseInternal();
-        }
-      }, connectionTimeout);
+  /**
+   * This should be called after a connection instance (obtained with {@link #acquireAPI()}) is no
+   * longer needed - OR you can logout / close the connection instance.
+   *
+   * @param api the instance returned from {@link #acquireAPI()}.
+   */
+  public void releaseAPI(EspritAPI api) {
+    if (!(api instanceof ManagedEspritAPI)) {
+      throw new IllegalArgumentException("Not a managed API instance.");
+    }
+    ManagedEspritAPI managed = (ManagedEspritAPI) api;
+    boolean idle;
+    lock.lock();
+    try {
+      // The lease of this thread if it holds one - otherwise the oldest lease (released for another
+      // thread).
+      Deque<ManagedEspritAPI> deque = borrowed.get();
+      if (!managed.leases.contains(deque)) {
+        deque = managed.leases.isEmpty() ? null : managed.leases.get(0);
+      }
+      if (deque != null) {
+        managed.leases.remove(deque);
+        deque.removeFirstOccurrence(managed);
+      }
+      if (borrowed.get().isEmpty()) {
+        borrowed.remove();
+      }
+      if (deque == null || managed.inFlight <= 0 || !sessions.contains(managed)) {
+        return; // Released twice.
+      }
+      idle = --managed.inFlight == 0;
+      if (idle) {
+        managed.idleSince = System.currentTimeMillis();
+      }
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+    if (idle) {
+      if (connectionTimeout > 0) {
+        schedule(connectionTimeout);
+      } else {
+        expire();
+      }
+    }
+  }
+
+  /**
+   * Coalesce the pending releases - there is at most one expiry scheduled per manager and it runs
+   * at the earliest idle deadline (a later acquire pushes that session's deadline out).
+   */
+  private void schedule(long delay) {
+    lock.lock();
+    try {
+      if (expiry == null) {
+        expiry = scheduler.schedule(this::expire, delay, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Releases the connection most recently acquired by the calling thread - see
+   * {@link #releaseAPI(EspritAPI)} (which must be used when the instance is released from another
+   * thread).
+   *
+   */
+  public void releaseAPI() {
+    ManagedEspritAPI api;
+    lock.lock();
+    try {
+      api = borrowed.get().peek();
+    } finally {
+      lock.unlock();
+    }
+    if (api == null) {
+      getLogger().warning("[Connection] Nothing to release on this thread.");
     } else {
-      releaseInternal();
+      releaseAPI(api);
     }
   }
 
-  private void releaseInternal() {
-    synchronized (count) {
-      if (count.decrementAndGet() <= 0) {
-        try {
-          getConnectionQueue().submit(new ConnectionWorker(false)).get();
-        } catch (InterruptedException | ExecutionException e) {
-          getLogger().log(Level.SEVERE, "[Connection] Error returning..", e);
+  /**
+   * Logout the sessions that have been idle for the connection timeout (keeping the minimum).
+   */
+  private void expire() {
+    List<ManagedEspritAPI> expired = new ArrayList<>();
+    long now = System.currentTimeMillis(), next = Long.MAX_VALUE;
+    lock.lock();
+    try {
+      expiry = null;
+      for (int i = 0; i < sessions.size();) {
+        ManagedEspritAPI api = sessions.get(i);
+        if (api.inFlight == 0 && sessions.size() > minSessions && now - api.idleSince >= connectionTimeout) {
+          expired.add(sessions.remove(i));
+        } else {
+          if (api.inFlight == 0) {
+            next = Math.min(next, api.idleSince + connectionTimeout);
+          }
+          i++;
         }
       }
-      if (count.get() < 0) {
-        count.set(0);
+      if (next != Long.MAX_VALUE && sessions.size() > minSessions && connectionTimeout > 0) {
+        expiry = scheduler.schedule(this::expire, Math.max(1, next - now), TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      lock.unlock();
+    }
+    for (ManagedEspritAPI api : expired) {
+      try {
+        api.shut();
+      } catch (RuntimeException e) {
+        getLogger().log(Level.SEVERE, "[Connection] Error returning..", e);
       }
     }
   }
 
   /**
-   * The number of milliseconds to wait before closing this managers connection after it has been
-   * released.
-   * 
+   * The number of milliseconds to wait before closing an idle session after it has been released.
+   *
    * @param connectionTimeout (in milliseconds).
    * @return the instance it was call on (for chaining).
    */
@@ -154,69 +361,218 @@ public class EspritAPIManager {
     return this;
   }
 
+  /**
+   * The size of the session pool: at most max sessions are opened and idle sessions are only logged
+   * out while there are more than min.
+   *
+   * @param min sessions kept open once opened.
+   * @param max sessions open at the same time.
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPIManager setPoolSize(int min, int max) {
+    if (max < 1 || min < 0 || min > max) {
+      throw new IllegalArgumentException("Invalid pool size [" + min + "][" + max + "]");
+    }
+    lock.lock();
+    try {
+      this.minSessions = min;
+      this.maxSessions = max;
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+  /**
+   * The number of callers that can share one session at the same time.
+   *
+   * @param maxInFlight per session (at least 1).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPIManager setMaxInFlight(int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("Max in flight must be at least 1.");
+    }
+    lock.lock();
+    try {
+      this.maxInFlight = maxInFlight;
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+  /**
+   * The number of milliseconds to wait for a free session before failing.
+   *
+   * @param acquireTimeout (in milliseconds).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPIManager setAcquireTimeout(long acquireTimeout) {
+    this.acquireTimeout = acquireTimeout;
+    return this;
+  }
+
+  /**
+   * The connection pool shared by all of the sessions (so sockets and TLS sessions are reused
+   * between them). The default pool has no per-host limit - a bounded pool caps the calls in flight
+   * across every session, so size it for the total number of callers.
+   *
+   * @param pool to share.
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPIManager setConnectionPool(ConnectionPool pool) {
+    if (pool == null) {
+      throw new IllegalArgumentException("Connection pool can't be null.");
+    }
+    this.pool = pool;
+    return this;
+  }
+
+  /**
+   * A reference data cache shared by all of the sessions (they are the same user).
+   *
+   * @param cache to share (null for none).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPIManager setReferenceCache(ReferenceCache cache) {
+    this.cache = cache;
+    return this;
+  }
+
+  /**
+   * An object cache shared by all of the sessions - so an edit made through one session drops the
+   * object for all of them.
+   *
+   * @param entities to share (null for none).
+   * @return the instance it was call on (for chaining).
+   */
+  public EspritAPIManager setEntityCache(EntityCache entities) {
+    this.entities = entities;
+    return this;
+  }
+
+  public Metrics getMetrics() {
+    return metrics;
+  }
 
   /**
    * Should be called when the manager is no longer needed - it does not destroy the instance. A
    * shut down manager can be used again.
-   * 
+   *
    */
   public void shutdown() {
+    List<ManagedEspritAPI> open;
+    lock.lock();
     try {
-      if (api != null && api.isLoggedIn()) {
-        api.logout();
+      open = new ArrayList<>(sessions);
+      sessions.clear();
+      if (expiry != null) {
+        expiry.cancel(false);
+        expiry = null;
       }
+      available.signalAll();
     } finally {
-      if (connPool != null) { // Shut down the connection queue.
-        connPool.shutdownNow();
-        try {
-          connPool.awaitTermination(10, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-
-        }
-      }
+      lock.unlock();
     }
-    connPool = null;
-  }
-
-  private ExecutorService getConnectionQueue() {
-    return connPool == null ? connPool = Executors.newSingleThreadExecutor() : connPool;
+    open.forEach(ManagedEspritAPI::shut);
   }
 
   /**
    * A logger instance for this manager - attach a handler to it to listen along.
-   * 
+   *
    * @return the logger instance for this class instance.
    */
   public Logger getLogger() {
     return logger == null ? logger = Logger.getAnonymousLogger() : logger;
   }
 
-  private class ConnectionWorker implements Callable<EspritConnectionException> {
-    private boolean open;
+  /**
+   * Pool counters - wait times include the login when a session had to be opened.
+   */
+  public final class Metrics {
+    private final AtomicLong acquisitions = new AtomicLong(), waitNanos = new AtomicLong(), maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong(), logins = new AtomicLong(), logouts = new AtomicLong();
+
+    private Metrics() {
 
-    private ConnectionWorker(boolean open) {
-      this.open = open;
     }
 
-    @Override
-    public EspritConnectionException call() {
-      if (open && !api.isLoggedIn()) {
-        getLogger().fine("[Connection] Opening...");
-        long start = System.currentTimeMillis();
-        try {
-          api.login().get();
-        } catch (EspritConnectionException e) {
-          return e;
-        }
-        getLogger().fine("[Connection] Open [" + (System.currentTimeMillis() - start) + "]ms.");
+    private void acquired(long nanos) {
+      acquisitions.incrementAndGet();
+      waitNanos.addAndGet(nanos);
+      maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getAcquisitions() {
+      return acquisitions.get();
+    }
+
+    /**
+     * @return mean time spent in {@link EspritAPIManager#acquireAPI()} (in milliseconds).
+     */
+    public double getMeanWait() {
+      long count = acquisitions.get();
+      return count == 0 ? 0 : waitNanos.get() / (count * 1e6);
+    }
+
+    /**
+     * @return longest time spent in {@link EspritAPIManager#acquireAPI()} (in milliseconds).
+     */
+    public double getMaxWait() {
+      return maxWaitNanos.get() / 1e6;
+    }
+
+    public long getTimeouts() {
+      return timeouts.get();
+    }
+
+    public long getLogins() {
+      return logins.get();
+    }
+
+    public long getLogouts() {
+      return logouts.get();
+    }
+
+    /**
+     * @return sessions currently in the pool.
+     */
+    public int getSessions() {
+      lock.lock();
+      try {
+        return sessions.size();
+      } finally {
+        lock.unlock();
       }
-      if (!open && api.isLoggedIn()) {
-        getLogger().fine("[Connection] Closing...");
-        api.logout();
-        getLogger().fine("[Connection] Closed.");
+    }
+
+    /**
+     * @return callers currently holding a session.
+     */
+    public int getInFlight() {
+      lock.lock();
+      try {
+        return sessions.stream().mapToInt(api -> api.inFlight).sum();
+      } finally {
+        lock.unlock();
       }
-      return null;
     }
+
+    /**
+     * @return the fraction of the maximum pool size that is busy (0 to 1).
+     */
+    public double getUtilisation() {
+      lock.lock();
+      try {
+        return sessions.stream().filter(api -> api.inFlight > 0).count() / (double) maxSessions;
+      } finally {
+        lock.unlock();
+      }
+    }
+
   }
 
 }
@@ -0,0 +1,258 @@
+package org.keeber.esprit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.keeber.esprit.EspritAPI.EspritConnectionException;
+
+/**
+ * <p>
+ * Client side limits for calls to the Esprit server (see
+ * {@link EspritAPI#setLimiter(String, Limiter)}) - a token bucket rate limit plus a concurrency
+ * limit.
+ *
+ * <p>
+ * The concurrency limit adapts (AIMD) to the observed latency: it grows by about one per round
+ * trip while calls complete close to the fastest latency seen, and shrinks by a tenth (at most once
+ * per round trip) when calls fail with a transient error or take more than the latency tolerance
+ * times the fastest latency. This keeps the server in the region where more concurrency still
+ * means more throughput rather than longer queues.
+ *
+ * <p>
+ * A call that returns a stream keeps its slot until the stream is closed - its latency is the time
+ * to the response headers. The time of an upload depends on the size of the file so only its
+ * errors are used to adjust the limit.
+ *
+ * <p>
+ * Callers over the limit wait (in arrival order) for up to the max wait and are then rejected with
+ * an EspritConnectionException - with a max wait of 0 they are rejected straight away (the async
+ * API returns a failed future).
+ *
+ */
+public class Limiter {
+  private final ReentrantLock lock = new ReentrantLock(true);
+  private final Condition available = lock.newCondition();
+  private double rate = 0, tokens, limit = 8;
+  private int burst = 1, minLimit = 1, maxLimit = 64, inFlight;
+  private long maxWait = 1000 * 30, refilled = System.nanoTime();
+  private boolean adaptive = true;
+  private double tolerance = 2;
+  private long minLatency, dropped, samples, rejections;
+
+  /**
+   * The number of calls per second - with a burst of up to the given number of calls after a quiet
+   * period.
+   *
+   * @param rate calls per second (0 for no rate limit, the default).
+   * @param burst calls allowed at once (at least 1).
+   * @return the instance it was call on (for chaining).
+   */
+  public Limiter setRate(double rate, int burst) {
+    lock.lock();
+    try {
+      this.rate = rate;
+      this.burst = Math.max(1, burst);
+      this.tokens = this.burst;
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+  /**
+   * The concurrency limit - it starts at the initial value and (when adaptive) moves between min
+   * and max.
+   *
+   * @param initial calls in flight at the start.
+   * @param min lowest limit.
+   * @param max highest limit.
+   * @return the instance it was call on (for chaining).
+   */
+  public Limiter setConcurrency(int initial, int min, int max) {
+    if (min < 1 || min > max || initial < min || initial > max) {
+      throw new IllegalArgumentException("Invalid concurrency [" + initial + "][" + min + "][" + max + "]");
+    }
+    lock.lock();
+    try {
+      this.limit = initial;
+      this.minLimit = min;
+      this.maxLimit = max;
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+  /**
+   * @param adaptive adjust the concurrency limit from the latency and errors (the default) or keep
+   *        it fixed.
+   * @return the instance it was call on (for chaining).
+   */
+  public Limiter setAdaptive(boolean adaptive) {
+    this.adaptive = adaptive;
+    return this;
+  }
+
+  /**
+   * @param tolerance how many times slower than the fastest latency a call can be before the limit
+   *        shrinks (default 2).
+   * @return the instance it was call on (for chaining).
+   */
+  public Limiter setLatencyTolerance(double tolerance) {
+    this.tolerance = tolerance;
+    return this;
+  }
+
+  /**
+   * The number of milliseconds to wait for the limit before failing.
+   *
+   * @param maxWait (in milliseconds - 0 rejects without waiting).
+   * @return the instance it was call on (for chaining).
+   */
+  public Limiter setMaxWait(long maxWait) {
+    this.maxWait = maxWait;
+    return this;
+  }
+
+  /**
+   * @return the current concurrency limit.
+   */
+  public int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return calls rejected because the limit was reached.
+   */
+  public long getRejections() {
+    lock.lock();
+    try {
+      return rejections;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait for the rate and concurrency limits.
+   *
+   * @return the start time (for {@link #release(long, boolean)}).
+   * @throws EspritConnectionException when the limit wasn't available within the max wait.
+   */
+  protected long acquire() throws EspritConnectionException {
+    lock.lock();
+    try {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+      while (true) {
+        long now = System.nanoTime();
+        if (rate > 0) {
+          tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+        }
+        refilled = now;
+        boolean full = inFlight >= (int) limit;
+        if (!full && (rate <= 0 || tokens >= 1)) {
+          if (rate > 0) {
+            tokens--;
+          }
+          inFlight++;
+          return now;
+        }
+        long remaining = deadline - now;
+        if (remaining <= 0) {
+          rejections++;
+          throw new EspritConnectionException("LIMIT Exceeded [" + inFlight + "][" + (int) limit + "]");
+        }
+        if (!full) {
+          // Only waiting for the next token.
+          remaining = Math.min(remaining, Math.max(1, (long) ((1 - tokens) * 1e9 / rate)));
+        }
+        try {
+          available.awaitNanos(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new EspritConnectionException("LIMIT Interrupted", e);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Return the call slot and adjust the limit from the call.
+   *
+   * @param start from {@link #acquire()}.
+   * @param overloaded true when the call failed with a transient error (timeout, 503...).
+   */
+  protected void release(long start, boolean overloaded) {
+    lock.lock();
+    try {
+      sample(start, overloaded);
+      inFlight--;
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adjust the limit from a call that keeps its slot (until {@link #cancel()}).
+   *
+   * @param start from {@link #acquire()}.
+   * @param overloaded true when the call failed with a transient error (timeout, 503...).
+   */
+  protected void sample(long start, boolean overloaded) {
+    lock.lock();
+    try {
+      long now = System.nanoTime(), latency = now - start;
+      if (adaptive) {
+        // Re-probe the fastest latency now and then (the server may have become slower for good).
+        if (minLatency == 0 || latency < minLatency || ++samples % 1000 == 0) {
+          minLatency = Math.max(1, latency);
+        }
+        if (overloaded || latency > minLatency * tolerance) {
+          if (now - dropped >= latency) {
+            limit = Math.max(minLimit, limit * 0.9);
+            dropped = now;
+          }
+        } else if (inFlight >= limit / 2) {
+          limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Return the call slot without a sample (the call was never made, was sampled already or its time
+   * says nothing about the server).
+   */
+  protected void cancel() {
+    lock.lock();
+    try {
+      inFlight--;
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
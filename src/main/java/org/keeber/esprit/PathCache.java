@@ -0,0 +1,255 @@
+package org.keeber.esprit;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.keeber.esprit.EspritAPI.ApiRequest;
+import org.keeber.esprit.EspritAPI.ApiResponse;
+
+import com.dalim.esprit.api.EsBase;
+import com.dalim.esprit.api.EsClass;
+import com.dalim.esprit.api.EsClassable;
+import com.dalim.esprit.api.EsRef;
+import com.dalim.esprit.api.ListOf;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * <p>
+ * A bounded (least recently used) cache of object paths to their ID and class - see
+ * {@link EspritAPI#setPathCache(PathCache)}.
+ *
+ * <p>
+ * The cache learns from the responses to read calls made with a path (the path of the request and
+ * the ID of the result), from results that carry their own path (folders) and from
+ * "production.getObjectByPath". Read requests that reference an object by path only (eg:
+ * EsRef.from("/Customer/Job/Doc.pdf")) are then sent with the cached ID instead - the server
+ * doesn't have to resolve the path again. Calls that change objects (edit, delete, approve...)
+ * always send the path so they act on whatever is at the path now, never on a cached ID.
+ *
+ * <p>
+ * An object and everything below it is dropped from the cache when it is edited (renamed or moved)
+ * or deleted through the API, when a call made with a cached ID fails and after the TTL. Changes
+ * made by other clients are only noticed through the TTL.
+ *
+ */
+public class PathCache {
+  private final Map<String, Target> paths;
+  private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+  private long ttl = 1000 * 60 * 10;
+
+  /**
+   * Create a cache of up to 10,000 paths.
+   */
+  public PathCache() {
+    this(10000);
+  }
+
+  /**
+   * Create a cache of up to the given number of paths.
+   *
+   * @param capacity maximum number of paths.
+   */
+  public PathCache(int capacity) {
+    this.paths = new LinkedHashMap<String, Target>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Target> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * @param ttl how long a path is trusted (in milliseconds - default 10 minutes).
+   * @return the instance it was call on (for chaining).
+   */
+  public PathCache setTTL(long ttl) {
+    this.ttl = ttl;
+    return this;
+  }
+
+  /**
+   * The cached ID and class of a path.
+   *
+   * @param path of the object (eg: /Customer/Job/Doc.pdf).
+   * @return the reference (if the path is cached).
+   */
+  public synchronized Optional<EsRef.WithClass> resolve(String path) {
+    Target target = paths.get(path);
+    if (target != null && System.currentTimeMillis() - target.cached >= ttl) {
+      paths.remove(path);
+      target = null;
+    }
+    (target == null ? misses : hits).incrementAndGet();
+    return target == null ? Optional.empty() : Optional.of(EsRef.WithClass.from(target.ID, target.esclass));
+  }
+
+  public synchronized void put(String path, Integer ID, EsClass esclass) {
+    if (path != null && ID != null) {
+      paths.put(path, new Target(ID, esclass));
+    }
+  }
+
+  /**
+   * Drop a path and everything below it.
+   *
+   * @param path of the object.
+   */
+  public synchronized void invalidate(String path) {
+    if (path != null) {
+      paths.keySet().removeIf(p -> p.equals(path) || p.startsWith(path.endsWith("/") ? path : path + "/"));
+    }
+  }
+
+  /**
+   * Drop the paths of an object (and everything below them).
+   *
+   * @param ID of the object.
+   */
+  public synchronized void invalidate(Integer ID) {
+    List<String> removed = new ArrayList<>();
+    paths.forEach((path, target) -> {
+      if (target.ID.equals(ID)) {
+        removed.add(path);
+      }
+    });
+    removed.forEach(this::invalidate);
+  }
+
+  public synchronized void invalidate() {
+    paths.clear();
+  }
+
+  public synchronized int size() {
+    return paths.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Swap the path references of an idempotent request for cached IDs (the request itself isn't
+   * changed) - and forget objects that are about to be edited or deleted.
+   *
+   * @return the request to send.
+   */
+  protected <T> ApiRequest<T> rewrite(ApiRequest<T> request) {
+    Map<String, Object> params = request.getParams();
+    ApiRequest<T> rewritten = null;
+    // Changes always send the path - a cached ID may name an object that has since moved away.
+    if (request.isIdempotent()) {
+      for (Entry<String, Object> param : params.entrySet()) {
+        String key = idKey(param.getKey());
+        if (key != null && param.getValue() instanceof String && params.containsKey(key) && params.get(key) == null) {
+          Optional<EsRef.WithClass> ref = resolve((String) param.getValue());
+          if (ref.isPresent()) {
+            if (rewritten == null) {
+              rewritten = new ApiRequest<>(request.getMethod(), request.getType());
+              rewritten.getParams().putAll(params);
+            }
+            rewritten.put(key, ref.get().getID());
+            rewritten.getParams().remove(param.getKey());
+            if (key.equals("ID") && params.containsKey("class") && params.get("class") == null) {
+              rewritten.put("class", ref.get().getEsclass());
+            }
+          }
+        }
+      }
+    }
+    if (isChange(request.getMethod())) {
+      Object ID = params.get("ID"), path = params.get("path");
+      if (ID != null && ID.toString().matches("[0-9]+")) {
+        invalidate(Integer.valueOf(ID.toString()));
+      }
+      if (path instanceof String) {
+        invalidate((String) path);
+      }
+    }
+    return rewritten == null ? request : rewritten;
+  }
+
+  /**
+   * Learn the paths from a response.
+   *
+   * @param request as made by the caller.
+   * @param sent the request that was sent (rewritten or not).
+   * @param response to learn from.
+   */
+  protected void learn(ApiRequest<?> request, ApiRequest<?> sent, ApiResponse<?> response) {
+    if (response.hasError()) {
+      if (sent != request) {
+        // The cached ID may be stale - the next call resolves the path again.
+        request.getParams().forEach((key, value) -> {
+          if (idKey(key) != null && value instanceof String) {
+            invalidate((String) value);
+          }
+        });
+      }
+      return;
+    }
+    if (!response.hasResult() || !request.isIdempotent()) {
+      return;
+    }
+    Object result = response.get(), path = request.getParams().get("path");
+    if (result instanceof EsBase) {
+      EsBase o = (EsBase) result;
+      if (path instanceof String && request.getParams().get("ID") == null) {
+        put((String) path, o.getID(), esclass(o));
+      }
+      put(o.getPath(), o.getID(), esclass(o));
+    } else if (result instanceof ListOf) {
+      for (Object o : ((ListOf<?>) result).getAll()) {
+        put(((EsBase) o).getPath(), ((EsBase) o).getID(), esclass(o));
+      }
+    } else if (result instanceof JsonObject && path instanceof String && "production.getObjectByPath".equals(request.getMethod())) {
+      JsonObject o = (JsonObject) result;
+      if (o.has("ID") && o.get("ID").isJsonPrimitive()) {
+        JsonElement esclass = o.get("class");
+        put((String) path, o.get("ID").getAsInt(), esclass == null || esclass.isJsonNull() ? null : EspritAPI.json.getCompact().fromJson(esclass, EsClass.class));
+      }
+    }
+  }
+
+  private static EsClass esclass(Object o) {
+    return o instanceof EsClassable ? ((EsClassable) o).getEsclass() : null;
+  }
+
+  /**
+   * The ID param paired with a path param ("path" - "ID", "jobPath" - "jobID").
+   */
+  private static String idKey(String key) {
+    if (key.equals("path")) {
+      return "ID";
+    }
+    return key.endsWith("Path") ? key.substring(0, key.length() - 4) + "ID" : null;
+  }
+
+  private static boolean isChange(String method) {
+    return method.endsWith(".edit") || method.endsWith(".delete");
+  }
+
+  private static class Target {
+    private final Integer ID;
+    private final EsClass esclass;
+    private final long cached = System.currentTimeMillis();
+
+    private Target(Integer ID, EsClass esclass) {
+      this.ID = ID;
+      this.esclass = esclass;
+    }
+
+  }
+
+}
@@ -0,0 +1,237 @@
+package org.keeber.esprit;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.keeber.esprit.EspritAPI.ApiResponse;
+import org.keeber.esprit.EspritAPI.EspritConnectionException;
+
+/**
+ * <p>
+ * A time to live cache for the reference data methods (color spaces, viewing conditions,
+ * workflows, project templates, roles, user profiles and the metadata list) - see
+ * {@link EspritAPI#setReferenceCache(ReferenceCache)}.
+ *
+ * <p>
+ * An entry used after the refresh ahead point of its TTL is reloaded in the background (the
+ * cached value is returned meanwhile) so busy callers never wait on the reload. When a reload
+ * fails - the call throws or the server answers with an error - the previous value is served for
+ * up to the max stale time. Only successful responses are cached. The reload is made through the
+ * API of the latest caller (the one that loaded the entry may be logged out by now) and a reload
+ * that overlapped an invalidation isn't cached.
+ *
+ * <p>
+ * The cached responses (and results) are shared by every caller so they must not be modified. A
+ * cache can be shared by several EspritAPI instances logged in to the same server as the same user.
+ *
+ */
+public class ReferenceCache {
+  private final Map<String, Long> ttls = new ConcurrentHashMap<>();
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), stale = new AtomicLong(), refreshes = new AtomicLong();
+  /**
+   * Bumped on every invalidation - a load that overlapped one is not cached.
+   */
+  private long generation;
+  private double refreshAhead = 0.8;
+  private long maxStale = 1000 * 60 * 60;
+  private ExecutorService refresher;
+
+  /**
+   * Create a cache with a 10 minute TTL for all of the reference data methods.
+   */
+  public ReferenceCache() {
+    this(1000 * 60 * 10);
+  }
+
+  /**
+   * Create a cache with the given TTL for all of the reference data methods.
+   *
+   * @param ttl time to live (in milliseconds).
+   */
+  public ReferenceCache(long ttl) {
+    for (String method : new String[] {"production.colorSpaces", "production.viewingConditions", "production.workflows", "production.projectTemplates", "directory.roles", "directory.userProfiles",
+        "metadata.list"}) {
+      ttls.put(method, ttl);
+    }
+  }
+
+  /**
+   * The TTL for one method - any read only method can be cached.
+   *
+   * @param method name (eg: "production.workflows").
+   * @param ttl time to live (in milliseconds - 0 stops caching the method).
+   * @return the instance it was call on (for chaining).
+   */
+  public ReferenceCache setTTL(String method, long ttl) {
+    if (ttl <= 0) {
+      ttls.remove(method);
+      invalidate(method);
+    } else {
+      ttls.put(method, ttl);
+    }
+    return this;
+  }
+
+  /**
+   * @param refreshAhead fraction of the TTL after which a used entry is reloaded in the background
+   *        (default 0.8 - 1 disables refresh ahead).
+   * @return the instance it was call on (for chaining).
+   */
+  public ReferenceCache setRefreshAhead(double refreshAhead) {
+    this.refreshAhead = refreshAhead;
+    return this;
+  }
+
+  /**
+   * @param maxStale how long an expired value may be served when the server fails (in
+   *        milliseconds - 0 disables).
+   * @return the instance it was call on (for chaining).
+   */
+  public ReferenceCache setMaxStale(long maxStale) {
+    this.maxStale = maxStale;
+    return this;
+  }
+
+  /**
+   * Drop every cached value.
+   */
+  public void invalidate() {
+    synchronized (entries) {
+      generation++;
+      entries.clear();
+    }
+  }
+
+  /**
+   * Drop the cached values of a method.
+   *
+   * @param method name (eg: "production.workflows").
+   */
+  public void invalidate(String method) {
+    synchronized (entries) {
+      generation++;
+      entries.keySet().removeIf(key -> key.startsWith(method + "|"));
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return expired values served because the reload failed.
+   */
+  public long getStaleHits() {
+    return stale.get();
+  }
+
+  /**
+   * @return background reloads.
+   */
+  public long getRefreshes() {
+    return refreshes.get();
+  }
+
+  protected boolean caches(String method) {
+    return ttls.containsKey(method);
+  }
+
+  protected <T> ApiResponse<T> get(String method, String key, Loader<T> loader) throws EspritConnectionException {
+    long ttl = ttls.getOrDefault(method, 0L), now = System.currentTimeMillis();
+    Entry entry = entries.get(key);
+    if (entry != null && now - entry.loaded < ttl) {
+      hits.incrementAndGet();
+      entry.loader = loader;
+      if (now - entry.loaded >= ttl * refreshAhead && entry.refreshing.compareAndSet(false, true)) {
+        getRefresher().execute(() -> {
+          refreshes.incrementAndGet();
+          try {
+            // Through the latest caller - taken when the reload runs.
+            load(key, entry.loader);
+          } catch (EspritConnectionException | RuntimeException e) {
+            // The entry is still valid - the next caller after the TTL tries again.
+          } finally {
+            entry.refreshing.set(false);
+          }
+        });
+      }
+      return copy(entry);
+    }
+    misses.incrementAndGet();
+    try {
+      ApiResponse<T> response = load(key, loader);
+      if (response.hasError() && isServable(entry, now, ttl)) {
+        stale.incrementAndGet();
+        return copy(entry);
+      }
+      return response;
+    } catch (EspritConnectionException | RuntimeException e) {
+      if (isServable(entry, now, ttl)) {
+        stale.incrementAndGet();
+        return copy(entry);
+      }
+      throw e;
+    }
+  }
+
+  private boolean isServable(Entry entry, long now, long ttl) {
+    return entry != null && now - entry.loaded < ttl + maxStale;
+  }
+
+  private <T> ApiResponse<T> load(String key, Loader<T> loader) throws EspritConnectionException {
+    long loading;
+    synchronized (entries) {
+      loading = generation;
+    }
+    ApiResponse<T> response = loader.load();
+    synchronized (entries) {
+      // Not cached if it was invalidated while loading - the result may be from before.
+      if (!response.hasError() && generation == loading) {
+        entries.put(key, new Entry(response, loader));
+      }
+    }
+    return response;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> ApiResponse<T> copy(Entry entry) {
+    return new ApiResponse<T>().copy((ApiResponse<T>) entry.response);
+  }
+
+  private synchronized ExecutorService getRefresher() {
+    return refresher == null ? refresher = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "ReferenceCache-refresh");
+      thread.setDaemon(true);
+      return thread;
+    }) : refresher;
+  }
+
+  protected interface Loader<T> {
+
+    ApiResponse<T> load() throws EspritConnectionException;
+
+  }
+
+  private static class Entry {
+    private final ApiResponse<?> response;
+    private final long loaded = System.currentTimeMillis();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Loader<?> loader;
+
+    private Entry(ApiResponse<?> response, Loader<?> loader) {
+      this.response = response;
+      this.loader = loader;
+    }
+
+  }
+
+}
@@ -0,0 +1,428 @@
+package org.keeber.esprit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.keeber.esprit.EspritAPI.Document.UploadMetadata;
+
+/**
+ * <p>
+ * A durable, append only record of uploads - see {@link UploadPipeline#setJournal(UploadJournal)}.
+ *
+ * <p>
+ * The intent of each upload (the file, name, metadata and what was at its path) is written before
+ * it starts and its completion (with the new document ID) when it is done. After a restart the
+ * completed uploads are skipped and the pending ones can be replayed
+ * ({@link UploadPipeline#resume()}) - a pending one counts as arrived only if a different document
+ * is at its path now. A file is the same upload while its path, size, modification time, job and
+ * name are unchanged.
+ *
+ * <p>
+ * Records are appended to memory mapped segment files (a new segment is started when one is full)
+ * with a checksum each - a record torn by a crash is ignored. Writers wait until their record is on
+ * the disk but the syncs are shared: while one force is running the records of the other writers
+ * queue up and go to the disk together with the next one. The journal is compacted (the live
+ * records are written to a new segment) when it is opened.
+ *
+ */
+public class UploadJournal implements Closeable {
+  private static final String PREFIX = "upload-", SUFFIX = ".journal";
+  private static final byte INTENT = 'I', DONE = 'D', ABANDONED = 'A';
+  private final Path directory;
+  private final int segmentSize;
+  private final Map<String, Record> records = new LinkedHashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition synced = lock.newCondition();
+  private final AtomicLong syncs = new AtomicLong();
+  private MappedByteBuffer buffer;
+  private long sequence, appended, durable;
+  private boolean syncing, closed;
+
+  /**
+   * Open (or create) a journal with 16MB segments.
+   *
+   * @param directory to keep the segments in (only used by this journal).
+   * @throws IOException
+   */
+  public UploadJournal(Path directory) throws IOException {
+    this(directory, 1024 * 1024 * 16);
+  }
+
+  /**
+   * Open (or create) a journal.
+   *
+   * @param directory to keep the segments in (only used by this journal).
+   * @param segmentSize size of each segment file (in bytes).
+   * @throws IOException
+   */
+  public UploadJournal(Path directory, int segmentSize) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.segmentSize = segmentSize;
+    TreeMap<Long, Path> segments = new TreeMap<>();
+    try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+      for (Path segment : listing) {
+        String name = segment.getFileName().toString();
+        try {
+          segments.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), segment);
+        } catch (NumberFormatException e) {
+          // Not a segment.
+        }
+      }
+    }
+    for (Path segment : segments.values()) {
+      replay(segment);
+    }
+    sequence = segments.isEmpty() ? 0 : segments.lastKey();
+    // Compact - the live records go to a fresh segment and the old segments are removed.
+    lock.lock();
+    try {
+      roll();
+      for (Record record : records.values()) {
+        append(intent(record));
+        if (record.done) {
+          append(done(record.key, record.documentID));
+        }
+      }
+      buffer.force();
+      durable = appended;
+    } finally {
+      lock.unlock();
+    }
+    for (Path segment : segments.values()) {
+      Files.deleteIfExists(segment);
+    }
+  }
+
+  /**
+   * @return true if the item was uploaded (in this or an earlier run).
+   */
+  public boolean isDone(UploadPipeline.Item item) {
+    lock.lock();
+    try {
+      Record record = records.get(item.getKey());
+      return record != null && record.done;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the ID of the document the item was uploaded as (if it is done and the ID was resolved).
+   */
+  public Optional<Integer> getDocumentID(UploadPipeline.Item item) {
+    lock.lock();
+    try {
+      Record record = records.get(item.getKey());
+      return record == null ? Optional.empty() : Optional.ofNullable(record.documentID);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The uploads that were started but not completed - in the order they were started.
+   *
+   * @param api to create the upload metadata with.
+   * @return the items to upload again.
+   */
+  public List<UploadPipeline.Item> pending(EspritAPI api) {
+    List<UploadPipeline.Item> pending = new ArrayList<>();
+    lock.lock();
+    try {
+      for (Record record : records.values()) {
+        if (!record.done) {
+          UploadMetadata metadata = api.document.newUploadMetadata(Integer.parseInt(record.metadata.get("JobID")));
+          record.metadata.forEach(metadata::put);
+          // The file as it was journaled (the key ends with its size and modification time).
+          int modified = record.key.lastIndexOf('|'), size = record.key.lastIndexOf('|', modified - 1);
+          pending.add(new UploadPipeline.Item(Paths.get(record.file), record.fileName, metadata).recovered(record.baseline, Long.parseLong(record.key.substring(size + 1, modified)), Long.parseLong(record.key.substring(modified + 1))));
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return pending;
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return records.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of times the journal was forced to the disk (each covers every record
+   *         appended before it).
+   */
+  public long getSyncs() {
+    return syncs.get();
+  }
+
+  /**
+   * Record the intent to upload an item - returns once the record is on the disk.
+   *
+   * @param baseline what was at the path before the upload (null if unknown).
+   */
+  protected void intent(UploadPipeline.Item item, String baseline) throws IOException {
+    long end;
+    lock.lock();
+    try {
+      Record record = records.get(item.getKey());
+      if (record != null) {
+        return;
+      }
+      record = new Record(item.getKey(), item.getFile().toAbsolutePath().toString(), item.getFileName(), new TreeMap<>(item.getMetadata().getEntries()), baseline);
+      end = append(intent(record));
+      records.put(record.key, record);
+    } finally {
+      lock.unlock();
+    }
+    sync(end);
+  }
+
+  /**
+   * Record the completion of an upload - returns once the record is on the disk.
+   *
+   * @param documentID of the new document (null if unknown).
+   */
+  protected void done(UploadPipeline.Item item, Integer documentID) throws IOException {
+    long end;
+    lock.lock();
+    try {
+      Record record = records.get(item.getKey());
+      if (record == null || record.done) {
+        return;
+      }
+      end = append(done(record.key, documentID));
+      record.done = true;
+      record.documentID = documentID;
+    } finally {
+      lock.unlock();
+    }
+    sync(end);
+  }
+
+  /**
+   * Close the record of an upload that can't be completed (its file changed or was removed since
+   * it was journaled) - it is no longer pending. Returns once the record is on the disk.
+   */
+  protected void abandon(UploadPipeline.Item item) throws IOException {
+    long end;
+    lock.lock();
+    try {
+      Record record = records.get(item.getKey());
+      if (record == null || record.done) {
+        return;
+      }
+      end = append(abandoned(record.key));
+      records.remove(record.key);
+    } finally {
+      lock.unlock();
+    }
+    sync(end);
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (!closed) {
+        closed = true;
+        buffer.force();
+        durable = appended;
+        synced.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until everything up to the given position is on the disk - one waiting writer forces the
+   * segment for all of the others.
+   */
+  private void sync(long end) throws IOException {
+    lock.lock();
+    try {
+      while (durable < end) {
+        if (syncing) {
+          synced.awaitUninterruptibly();
+          continue;
+        }
+        syncing = true;
+        long target = appended;
+        MappedByteBuffer forcing = buffer;
+        lock.unlock();
+        try {
+          forcing.force();
+          syncs.incrementAndGet();
+        } finally {
+          lock.lock();
+          syncing = false;
+          durable = Math.max(durable, target);
+          synced.signalAll();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Append a record (with its length and checksum) - to a new segment if it doesn't fit.
+   *
+   * @return the position after the record.
+   */
+  private long append(byte[] record) throws IOException {
+    if (closed) {
+      throw new IOException("UploadJournal closed");
+    }
+    if (record.length + 8 > segmentSize) {
+      throw new IOException("Record larger than a segment [" + record.length + "]");
+    }
+    if (buffer.remaining() < record.length + 8) {
+      buffer.force();
+      durable = appended;
+      roll();
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    buffer.putInt(record.length);
+    buffer.putInt((int) crc.getValue());
+    buffer.put(record);
+    return appended += record.length + 8;
+  }
+
+  /**
+   * Start (and map) the next segment.
+   */
+  private void roll() throws IOException {
+    Path segment = directory.resolve(String.format("%s%012d%s", PREFIX, ++sequence, SUFFIX));
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // The mapping stays valid after the channel is closed.
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+  }
+
+  /**
+   * Read the records of a segment - up to the end of the written records (or a torn record).
+   */
+  private void replay(Path segment) throws IOException {
+    ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(segment));
+    while (in.remaining() >= 8) {
+      int length = in.getInt(), checksum = in.getInt();
+      if (length <= 0 || length > in.remaining()) {
+        break;
+      }
+      byte[] record = new byte[length];
+      in.get(record);
+      CRC32 crc = new CRC32();
+      crc.update(record);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      try (DataInputStream data = new DataInputStream(new ByteArrayInputStream(record))) {
+        byte type = data.readByte();
+        String key = data.readUTF();
+        if (type == INTENT) {
+          String file = data.readUTF(), fileName = data.readUTF();
+          Map<String, String> metadata = new TreeMap<>();
+          for (int i = data.readInt(); i > 0; i--) {
+            metadata.put(data.readUTF(), data.readUTF());
+          }
+          String baseline = data.available() > 0 && data.readBoolean() ? data.readUTF() : null;
+          records.putIfAbsent(key, new Record(key, file, fileName, metadata, baseline));
+        } else if (type == ABANDONED) {
+          records.remove(key);
+        } else if (type == DONE && records.containsKey(key)) {
+          Record done = records.get(key);
+          int documentID = data.readInt();
+          done.done = true;
+          done.documentID = documentID < 0 ? null : documentID;
+        }
+      }
+    }
+  }
+
+  private static byte[] intent(Record record) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(INTENT);
+      out.writeUTF(record.key);
+      out.writeUTF(record.file);
+      out.writeUTF(record.fileName);
+      out.writeInt(record.metadata.size());
+      for (Map.Entry<String, String> e : record.metadata.entrySet()) {
+        out.writeUTF(e.getKey());
+        out.writeUTF(e.getValue() == null ? "" : e.getValue());
+      }
+      out.writeBoolean(record.baseline != null);
+      if (record.baseline != null) {
+        out.writeUTF(record.baseline);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] done(String key, Integer documentID) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(DONE);
+      out.writeUTF(key);
+      out.writeInt(documentID == null ? -1 : documentID);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] abandoned(String key) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(ABANDONED);
+      out.writeUTF(key);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static class Record {
+    private final String key, file, fileName;
+    private final Map<String, String> metadata;
+    private final String baseline;
+    private boolean done;
+    private Integer documentID;
+
+    private Record(String key, String file, String fileName, Map<String, String> metadata, String baseline) {
+      this.key = key;
+      this.file = file;
+      this.fileName = fileName;
+      this.metadata = metadata;
+      this.baseline = baseline;
+    }
+
+  }
+
+}
@@ -0,0 +1,741 @@
+package org.keeber.esprit;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.keeber.esprit.EspritAPI.ApiRequest;
+import org.keeber.esprit.EspritAPI.ApiResponse;
+import org.keeber.esprit.EspritAPI.Document.UploadMetadata;
+import org.keeber.esprit.EspritAPI.EspritConnectionException;
+
+import com.dalim.esprit.api.EsRef;
+import com.dalim.esprit.api.document.EsDocument;
+import com.dalim.esprit.api.job.EsJob;
+
+/**
+ * <p>
+ * Uploads many files with a bounded number of concurrent uploads (see {@link #submit(Item)} and
+ * {@link #upload(Stream)}) - reporting the progress of each file and of the whole pipeline to a
+ * {@link Listener}.
+ *
+ * <p>
+ * Submitting blocks while the files waiting for (or in) an upload add up to more than the max
+ * queued bytes - a hot folder scanner can't run ahead of the uploads. A failed upload is retried
+ * with a jittered backoff. Before a retry the pipeline waits (up to the resolve timeout) to see
+ * whether the document arrived anyway (the upload may have failed after the server received it) so
+ * a retry doesn't create a duplicate - only a document (or revision) that wasn't at the path before
+ * the first attempt counts. A file the server accepted is never sent again.
+ *
+ * <p>
+ * The upload call doesn't return the new document - when resolving is enabled the document is
+ * looked up by its path (the path of the job and the file name) after the upload, waiting up to the
+ * resolve timeout for the server to register it. A failed look up doesn't fail the upload (see
+ * {@link Result#getResolveError()}). Add a {@link PathCache} to the API to keep the
+ * paths of the new documents for the follow up calls.
+ *
+ */
+public class UploadPipeline {
+  /**
+   * An error that says the document isn't there (any other error leaves the baseline unknown).
+   */
+  private static final Pattern NOT_FOUND = Pattern.compile("404|not found|does ?n[o']t exist", Pattern.CASE_INSENSITIVE);
+  private final EspritAPI api;
+  private final ReentrantLock lock = new ReentrantLock(true);
+  private final Condition space = lock.newCondition();
+  private final Map<Integer, String> jobs = new ConcurrentHashMap<>();
+  private final AtomicInteger completed = new AtomicInteger(), failed = new AtomicInteger();
+  private final AtomicLong bytes = new AtomicLong(), reported = new AtomicLong();
+  private final long started = System.nanoTime();
+  private int concurrency = 4, retries = 2, queued, active;
+  private long maxQueuedBytes = 1024L * 1024 * 1024, queuedBytes, backoff = 1000, resolveTimeout = 1000 * 30;
+  private boolean resolve = true, shut;
+  private Listener listener = new Listener() {};
+  private ExecutorService workers;
+  private UploadJournal journal;
+
+  public UploadPipeline(EspritAPI api) {
+    this.api = api;
+  }
+
+  /**
+   * @param concurrency number of concurrent uploads (default 4 - set before the first submit).
+   * @return the instance it was call on (for chaining).
+   */
+  public UploadPipeline setConcurrency(int concurrency) {
+    this.concurrency = Math.max(1, concurrency);
+    return this;
+  }
+
+  /**
+   * @param maxQueuedBytes the size of the files waiting for (or in) an upload before submit blocks
+   *        (default 1GB - a single larger file is always accepted).
+   * @return the instance it was call on (for chaining).
+   */
+  public UploadPipeline setMaxQueuedBytes(long maxQueuedBytes) {
+    lock.lock();
+    try {
+      this.maxQueuedBytes = maxQueuedBytes;
+      space.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+  /**
+   * @param retries number of times a failed upload is retried (default 2).
+   * @param backoff base of the exponential backoff between retries (in milliseconds - default 1s).
+   * @return the instance it was call on (for chaining).
+   */
+  public UploadPipeline setRetries(int retries, long backoff) {
+    this.retries = retries;
+    this.backoff = backoff;
+    return this;
+  }
+
+  /**
+   * @param resolve look up the ID of each uploaded document (the default).
+   * @param timeout how long to wait for the server to register a document (in milliseconds -
+   *        default 30 seconds).
+   * @return the instance it was call on (for chaining).
+   */
+  public UploadPipeline setResolve(boolean resolve, long timeout) {
+    this.resolve = resolve;
+    this.resolveTimeout = timeout;
+    return this;
+  }
+
+  public UploadPipeline setListener(Listener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  /**
+   * Record every upload in a journal - items the journal shows as uploaded are skipped and the
+   * uploads that were interrupted can be replayed with {@link #resume()}.
+   *
+   * @param journal to record in (null for none).
+   * @return the instance it was call on (for chaining).
+   */
+  public UploadPipeline setJournal(UploadJournal journal) {
+    this.journal = journal;
+    return this;
+  }
+
+  /**
+   * Queue a file for upload - blocks while the queue is full.
+   *
+   * @param item to upload.
+   * @return the result once the upload (and its retries) are done - failures are results too.
+   * @throws EspritConnectionException if interrupted while waiting for space in the queue.
+   */
+  public CompletableFuture<Result> submit(Item item) throws EspritConnectionException {
+    UploadJournal journal = this.journal;
+    if (journal != null && journal.isDone(item)) {
+      Result result = new Result(item);
+      result.skipped = true;
+      result.documentID = journal.getDocumentID(item).orElse(null);
+      completed.incrementAndGet();
+      listener.completed(result);
+      return CompletableFuture.completedFuture(result);
+    }
+    lock.lock();
+    try {
+      while (!shut && queuedBytes > 0 && queuedBytes + item.size > maxQueuedBytes) {
+        space.await();
+      }
+      if (shut) {
+        throw new IllegalStateException("UploadPipeline shut down");
+      }
+      queuedBytes += item.size;
+      queued++;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new EspritConnectionException("UPLOAD Interrupted [Queue]", e);
+    } finally {
+      lock.unlock();
+    }
+    CompletableFuture<Result> future = new CompletableFuture<>();
+    try {
+      getWorkers().execute(() -> {
+        Result result = run(item);
+        lock.lock();
+        try {
+          queuedBytes -= item.size;
+          active--;
+          space.signalAll();
+        } finally {
+          lock.unlock();
+        }
+        (result.isSuccess() ? completed : failed).incrementAndGet();
+        try {
+          listener.completed(result);
+          listener.stats(getStats());
+        } finally {
+          future.complete(result);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Shut down in the meantime - give the space back.
+      lock.lock();
+      try {
+        queuedBytes -= item.size;
+        queued--;
+        space.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      throw new IllegalStateException("UploadPipeline shut down", e);
+    }
+    return future;
+  }
+
+  /**
+   * Upload every item of a stream (the stream is read as the queue has space) and wait for them.
+   *
+   * @param items to upload.
+   * @return the results (in the order of the stream).
+   * @throws EspritConnectionException if interrupted while waiting for space in the queue.
+   */
+  public List<Result> upload(Stream<Item> items) throws EspritConnectionException {
+    List<CompletableFuture<Result>> futures = new ArrayList<>();
+    for (Iterator<Item> i = items.iterator(); i.hasNext();) {
+      futures.add(submit(i.next()));
+    }
+    return futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+  }
+
+  /**
+   * Upload the items the journal shows were started but not completed (eg: before a restart) and
+   * wait for them. When resolving is enabled each is looked up first - it may have made it. Items
+   * whose file changed (or was removed) since they were journaled fail and are closed in the journal.
+   *
+   * @return the results.
+   * @throws EspritConnectionException if interrupted while waiting for space in the queue.
+   */
+  public List<Result> resume() throws EspritConnectionException {
+    if (journal == null) {
+      throw new IllegalStateException("UploadPipeline has no journal");
+    }
+    return upload(journal.pending(api).stream());
+  }
+
+  /**
+   * Stop accepting files - the queued files are still uploaded.
+   */
+  public void shutdown() {
+    lock.lock();
+    try {
+      shut = true;
+      // Submitters waiting for space fail rather than wait for a pipeline that is closing.
+      space.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    synchronized (this) {
+      if (workers != null) {
+        workers.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Wait for the queued files after a shutdown.
+   *
+   * @param timeout in milliseconds.
+   * @return true if every upload is done.
+   * @throws InterruptedException
+   */
+  public boolean awaitTermination(long timeout) throws InterruptedException {
+    ExecutorService workers;
+    synchronized (this) {
+      workers = this.workers;
+    }
+    return workers == null || workers.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  public Stats getStats() {
+    lock.lock();
+    try {
+      return new Stats(queued, active, completed.get(), failed.get(), queuedBytes, bytes.get(), System.nanoTime() - started);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private synchronized ExecutorService getWorkers() {
+    if (workers == null) {
+      AtomicInteger count = new AtomicInteger();
+      workers = Executors.newFixedThreadPool(concurrency, r -> {
+        Thread thread = new Thread(r, "UploadPipeline-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return workers;
+  }
+
+  private Result run(Item item) {
+    lock.lock();
+    try {
+      queued--;
+      active++;
+    } finally {
+      lock.unlock();
+    }
+    Result result = new Result(item);
+    long start = System.nanoTime();
+    UploadJournal journal = this.journal;
+    if (item.recovered && !item.isUnchanged()) {
+      // The file that was started isn't there any more - its record is closed rather than replayed.
+      result.error = new EspritConnectionException("UPLOAD Abandoned [" + item.fileName + "][Changed since it was journaled]");
+      if (journal != null) {
+        try {
+          journal.abandon(item);
+        } catch (IOException e) {
+          // Still pending - abandoned again on the next resume.
+        }
+      }
+      result.nanos = System.nanoTime() - start;
+      return result;
+    }
+    String baseline = item.baseline;
+    boolean attempted = item.recovered, uploaded = false, journaled = false;
+    for (int attempt = 0;; attempt++) {
+      result.attempts = attempt + 1;
+      long[] sent = {0};
+      try {
+        if (resolve && !attempted) {
+          // What is at the path before the upload - only another document (or a new revision) is
+          // this upload.
+          baseline = baseline(item);
+        }
+        if (journal != null && !journaled) {
+          try {
+            journal.intent(item, baseline);
+          } catch (IOException e) {
+            result.error = new EspritConnectionException("JOURNAL Failed [" + item.fileName + "]", e);
+            result.nanos = System.nanoTime() - start;
+            return result;
+          }
+          journaled = true;
+        }
+        if (attempted && baseline != null) {
+          // The failed attempt may have made it after all - the server registers it asynchronously.
+          Integer arrived = await(item, baseline, resolveTimeout);
+          if (arrived != null) {
+            result.documentID = arrived;
+            result.error = null;
+            uploaded = true;
+            break;
+          }
+        }
+        attempted = true;
+        ApiResponse<Boolean> response = api.document.upload(item.file, item.fileName, item.metadata, (done, total) -> {
+          bytes.addAndGet(done - sent[0]);
+          sent[0] = done;
+          listener.progress(item, done, total);
+          long now = System.nanoTime(), last = reported.get();
+          if (now - last >= TimeUnit.SECONDS.toNanos(1) && reported.compareAndSet(last, now)) {
+            listener.stats(getStats());
+          }
+        });
+        if (response.hasError()) {
+          throw new EspritConnectionException("UPLOAD Failed [" + item.fileName + "]", response.error().toException());
+        }
+        if (!response.get()) {
+          throw new EspritConnectionException("UPLOAD Failed [" + item.fileName + "][Not accepted]");
+        }
+        result.error = null;
+        uploaded = true;
+        break;
+      } catch (EspritConnectionException | RuntimeException e) {
+        result.error = e instanceof EspritConnectionException ? (EspritConnectionException) e : new EspritConnectionException(e);
+        if (attempt >= retries) {
+          break;
+        }
+      }
+      try {
+        Thread.sleep(ThreadLocalRandom.current().nextLong(backoff * (1L << Math.min(attempt, 10)) + 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    if (uploaded && resolve && result.documentID == null) {
+      // Uploaded - a failure to find it is reported on its own (the file is never sent again).
+      try {
+        result.documentID = await(item, baseline, resolveTimeout);
+      } catch (EspritConnectionException | RuntimeException e) {
+        result.resolveError = e instanceof EspritConnectionException ? (EspritConnectionException) e : new EspritConnectionException(e);
+      }
+    }
+    if (journal != null && result.isSuccess()) {
+      try {
+        journal.done(item, result.documentID);
+      } catch (IOException e) {
+        // Uploaded - but a replay will look for it (or upload it again without resolving).
+        result.error = new EspritConnectionException("JOURNAL Failed [" + item.fileName + "]", e);
+      }
+    }
+    result.nanos = System.nanoTime() - start;
+    return result;
+  }
+
+  /**
+   * The path of the item's document (null if its job can't be found).
+   */
+  private String path(Item item) throws EspritConnectionException {
+    int jobID = item.metadata.getJobID();
+    String path = jobs.get(jobID);
+    if (path == null) {
+      ApiResponse<EsJob> job = api.job.get(EsRef.from(jobID), false);
+      if (!job.hasResult() || job.get().getCustomerName() == null) {
+        return null;
+      }
+      jobs.put(jobID, path = "/" + job.get().getCustomerName() + "/" + job.get().getName());
+    }
+    return path + "/" + item.fileName;
+  }
+
+  private ApiResponse<EsDocument> current(String path) throws EspritConnectionException {
+    return api.fresh(ApiRequest.from("document.get", EsDocument.class, EsRef.from(path)).put("withXMP", false));
+  }
+
+  /**
+   * @return the fingerprint of the document at the item's path ("" if there is none, null if it
+   *         can't be told - a retry then sends the file again rather than guess).
+   */
+  private String baseline(Item item) {
+    try {
+      String path = path(item);
+      if (path == null) {
+        return null;
+      }
+      ApiResponse<EsDocument> document = current(path);
+      if (document.hasResult()) {
+        return fingerprint(document.get());
+      }
+      return !document.hasError() || NOT_FOUND.matcher(document.error().getCode() + " " + document.error().getMessage()).find() ? "" : null;
+    } catch (EspritConnectionException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the identity of a document and its revision ("" for no document).
+   */
+  private static String fingerprint(EsDocument document) {
+    return document == null ? "" : document.getID() + "@" + ContentCache.version(document);
+  }
+
+  /**
+   * Wait for the uploaded document - polling until the timeout.
+   *
+   * @param baseline fingerprint of what was at the path before the upload (null if unknown - any
+   *        document counts).
+   * @return the document ID (or null if it wasn't found in time).
+   */
+  private Integer await(Item item, String baseline, long timeout) throws EspritConnectionException {
+    String path = path(item);
+    if (path == null) {
+      return null;
+    }
+    long deadline = System.currentTimeMillis() + timeout, delay = 250;
+    while (true) {
+      EsDocument document = current(path).or(null);
+      if (document != null && (baseline == null || !fingerprint(document).equals(baseline))) {
+        return document.getID();
+      }
+      if (System.currentTimeMillis() + delay > deadline) {
+        return null;
+      }
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      delay = Math.min(delay * 2, 1000 * 2);
+    }
+  }
+
+  /**
+   * Callbacks from the upload threads (they should be quick and must be thread safe).
+   */
+  public interface Listener {
+
+    /**
+     * @param item being uploaded.
+     * @param sent bytes of the file sent so far.
+     * @param total size of the file.
+     */
+    default void progress(Item item, long sent, long total) {
+
+    }
+
+    /**
+     * @param result of an upload (successful or not).
+     */
+    default void completed(Result result) {
+
+    }
+
+    /**
+     * Called after each upload and at most once a second during uploads.
+     *
+     * @param stats of the whole pipeline.
+     */
+    default void stats(Stats stats) {
+
+    }
+
+  }
+
+  /**
+   * A file to upload.
+   */
+  public static class Item {
+    private final Path file;
+    private final String fileName;
+    private final UploadMetadata metadata;
+    private long size, modified;
+    private boolean recovered;
+    private String baseline;
+
+    /**
+     * @param file to upload (as a PageOrder with the same name).
+     * @param metadata see {@link EspritAPI.Document#newUploadMetadata(int)}.
+     */
+    public Item(Path file, UploadMetadata metadata) {
+      this(file, file.getFileName().toString(), metadata);
+    }
+
+    /**
+     * @param file to upload.
+     * @param fileName PageOrder name in ES.
+     * @param metadata see {@link EspritAPI.Document#newUploadMetadata(int)}.
+     */
+    public Item(Path file, String fileName, UploadMetadata metadata) {
+      this.file = file;
+      this.fileName = fileName;
+      this.metadata = metadata;
+      long size, modified;
+      try {
+        size = Files.size(file);
+        modified = Files.getLastModifiedTime(file).toMillis();
+      } catch (IOException e) {
+        // Fails (and is reported) when it is uploaded.
+        size = modified = 0;
+      }
+      this.size = size;
+      this.modified = modified;
+    }
+
+    /**
+     * Mark an item replayed from a journal - it may have been uploaded before the restart.
+     *
+     * @param baseline what was at the path before the first attempt (null if unknown - the item is
+     *        uploaded again).
+     * @param size of the file when it was journaled.
+     * @param modified time of the file when it was journaled.
+     */
+    protected Item recovered(String baseline, long size, long modified) {
+      this.recovered = true;
+      this.baseline = baseline;
+      this.size = size;
+      this.modified = modified;
+      return this;
+    }
+
+    /**
+     * @return true if the file still has the size and modification time it was created (or
+     *         journaled) with.
+     */
+    protected boolean isUnchanged() {
+      try {
+        return Files.size(file) == size && Files.getLastModifiedTime(file).toMillis() == modified;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    /**
+     * @return the identity of the upload (the same file uploaded to the same job with the same name).
+     */
+    protected String getKey() {
+      return metadata.getJobID() + "|" + fileName + "|" + file.toAbsolutePath() + "|" + size + "|" + modified;
+    }
+
+    protected UploadMetadata getMetadata() {
+      return metadata;
+    }
+
+    public Path getFile() {
+      return file;
+    }
+
+    public String getFileName() {
+      return fileName;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+  }
+
+  /**
+   * The outcome of an upload.
+   */
+  public static class Result {
+    private final Item item;
+    private Integer documentID;
+    private EspritConnectionException error, resolveError;
+    private int attempts;
+    private long nanos;
+    private boolean skipped;
+
+    private Result(Item item) {
+      this.item = item;
+    }
+
+    public Item getItem() {
+      return item;
+    }
+
+    public boolean isSuccess() {
+      return error == null;
+    }
+
+    /**
+     * @return the last error (when the upload failed).
+     */
+    public Optional<EspritConnectionException> getError() {
+      return Optional.ofNullable(error);
+    }
+
+    /**
+     * @return the ID of the new document (when resolving is enabled and it was found).
+     */
+    public Optional<Integer> getDocumentID() {
+      return Optional.ofNullable(documentID);
+    }
+
+    /**
+     * @return the error looking up the new document (the upload itself succeeded).
+     */
+    public Optional<EspritConnectionException> getResolveError() {
+      return Optional.ofNullable(resolveError);
+    }
+
+    public int getAttempts() {
+      return attempts;
+    }
+
+    /**
+     * @return true if the journal showed the item was already uploaded (nothing was sent).
+     */
+    public boolean isSkipped() {
+      return skipped;
+    }
+
+    /**
+     * @return time taken (in milliseconds - including retries and resolving).
+     */
+    public long getTime() {
+      return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * @return bytes per second.
+     */
+    public double getThroughput() {
+      return nanos == 0 ? 0 : item.size * 1e9 / nanos;
+    }
+
+  }
+
+  /**
+   * A snapshot of the pipeline.
+   */
+  public static class Stats {
+    private final int queued, active, completed, failed;
+    private final long queuedBytes, bytes, nanos;
+
+    private Stats(int queued, int active, int completed, int failed, long queuedBytes, long bytes, long nanos) {
+      this.queued = queued;
+      this.active = active;
+      this.completed = completed;
+      this.failed = failed;
+      this.queuedBytes = queuedBytes;
+      this.bytes = bytes;
+      this.nanos = nanos;
+    }
+
+    /**
+     * @return files waiting for an upload thread.
+     */
+    public int getQueued() {
+      return queued;
+    }
+
+    /**
+     * @return files being uploaded.
+     */
+    public int getActive() {
+      return active;
+    }
+
+    public int getCompleted() {
+      return completed;
+    }
+
+    public int getFailed() {
+      return failed;
+    }
+
+    /**
+     * @return size of the files waiting for (or in) an upload.
+     */
+    public long getQueuedBytes() {
+      return queuedBytes;
+    }
+
+    /**
+     * @return bytes sent (including retries).
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return bytes per second since the pipeline was created.
+     */
+    public double getThroughput() {
+      return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+    }
+
+  }
+
+}
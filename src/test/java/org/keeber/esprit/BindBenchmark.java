@@ -0,0 +1,97 @@
+package org.keeber.esprit;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dalim.esprit.api.production.EsSqlResult;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * <p>
+ * Binding an SQL result reply - the String and JsonObject copies the transport used to make against
+ * the single streaming pass it makes now. Run with the GC profiler for the allocation per call (eg:
+ * gradle benchmark -Pjmh="Bind -prof gc").
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BindBenchmark {
+  @Param({"100", "5000"})
+  private int rows;
+  private byte[] reply;
+  private Gson gson = EspritAPI.json.getCompact();
+
+  @Setup
+  public void setup() throws IOException {
+    StringBuilder body = new StringBuilder("{\"id\":1,\"result\":{\"headers\":[");
+    body.append("{\"name\":\"ID\",\"table\":\"DOCUMENT\",\"type\":\"I\"},");
+    body.append("{\"name\":\"name\",\"table\":\"DOCUMENT\",\"type\":\"T\"},");
+    body.append("{\"name\":\"path\",\"table\":\"DOCUMENT\",\"type\":\"T\"},");
+    body.append("{\"name\":\"size\",\"table\":\"FILE\",\"type\":\"F\"},");
+    body.append("{\"name\":\"approved\",\"table\":\"DOCUMENT\",\"type\":\"B\"},");
+    body.append("{\"name\":\"lastModificationDate\",\"table\":\"DOCUMENT\",\"type\":\"DT\"}");
+    body.append("],\"objectList\":[");
+    for (int i = 0; i < rows; i++) {
+      body.append(i == 0 ? "" : ",").append("[").append(i).append(",\"Document ").append(i).append(".pdf\",\"/Customer/Job ").append(i % 50).append("/Document ")
+          .append(i).append(".pdf\",").append(i * 1024.5).append(",").append(i % 2 == 0).append(",\"2017-10-").append(10 + i % 20).append("T12:30:00+02:00\"]");
+    }
+    body.append("]}}");
+    reply = body.toString().getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public EsSqlResult copied() throws IOException {
+    JsonObject raw = gson.fromJson(asString(new ByteArrayInputStream(reply)), JsonObject.class);
+    return gson.fromJson(raw.get("result"), EsSqlResult.class);
+  }
+
+  @Benchmark
+  public EsSqlResult streamed() throws IOException {
+    EsSqlResult result = null;
+    try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(reply), "UTF-8"), 1024 * 8))) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if ("result".equals(reader.nextName())) {
+          result = gson.fromJson(reader, EsSqlResult.class);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    }
+    return result;
+  }
+
+  private static String asString(InputStream is) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024 * 8];
+    for (int len; (len = is.read(buffer)) > 0;) {
+      bos.write(buffer, 0, len);
+    }
+    return bos.toString("UTF-8");
+  }
+
+}
@@ -0,0 +1,111 @@
+package org.keeber.esprit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keeber.esprit.EspritAPI.CircuitState;
+import org.keeber.esprit.EspritAPI.EspritConnectionException;
+import org.keeber.esprit.EspritAPI.Policy;
+
+import com.dalim.esprit.api.EsClass;
+import com.dalim.esprit.api.EsObject;
+
+public class BreakerTest {
+  private final AtomicBoolean down = new AtomicBoolean();
+  private final AtomicInteger failures = new AtomicInteger();
+  private StubServer server;
+  private EspritAPI api;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new StubServer((exchange, body) -> {
+      if (down.get() || failures.getAndDecrement() > 0) {
+        StubServer.reply(exchange, 503, "");
+      } else {
+        StubServer.reply(exchange, 200, "{\"result\":{\"version\":\"5\"}}");
+      }
+    });
+    api = server.newAPI().setDefaultPolicy(Policy.from(1000, 1000).setBackoff(10, 50));
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void testIdempotentCallsAreRetried() throws Exception {
+    api.setCircuitBreaker(0, 0);
+    failures.set(2);
+    assertTrue(api.admin.getVersion().hasResult());
+    assertEquals(3, server.getRequests());
+    assertEquals(2, api.getMetrics().getRetries());
+  }
+
+  @Test
+  public void testOtherCallsAreNotRetried() throws Exception {
+    api.setCircuitBreaker(0, 0);
+    failures.set(1);
+    try {
+      api.document.delete(EsObject.from(7, EsClass.PageOrder));
+      fail("The delete should have failed.");
+    } catch (EspritConnectionException e) {
+      assertEquals(1, server.getRequests());
+      assertEquals(0, api.getMetrics().getRetries());
+    }
+  }
+
+  @Test
+  public void testCircuitOpensAndCloses() throws Exception {
+    api.setDefaultPolicy(Policy.from(1000, 1000).setRetries(0)).setCircuitBreaker(3, 200);
+    down.set(true);
+    for (int i = 0; i < 3; i++) {
+      try {
+        api.admin.getVersion();
+        fail("The call should have failed.");
+      } catch (EspritConnectionException e) {
+        assertEquals(i < 2 ? CircuitState.CLOSED : CircuitState.OPEN, api.getMetrics().getCircuitState());
+      }
+    }
+    // Open - failed without a call.
+    try {
+      api.admin.getVersion();
+      fail("The call should have been rejected.");
+    } catch (EspritConnectionException e) {
+      assertTrue(e.getMessage().startsWith("CIRCUIT Open"));
+    }
+    assertEquals(3, server.getRequests());
+    assertEquals(1, api.getMetrics().getCircuitTrips());
+    assertEquals(1, api.getMetrics().getCircuitRejections());
+    // The trial call closes it again.
+    Thread.sleep(250);
+    down.set(false);
+    assertTrue(api.admin.getVersion().hasResult());
+    assertEquals(CircuitState.CLOSED, api.getMetrics().getCircuitState());
+  }
+
+  @Test
+  public void testFailedTrialReopens() throws Exception {
+    api.setDefaultPolicy(Policy.from(1000, 1000).setRetries(0)).setCircuitBreaker(1, 100);
+    down.set(true);
+    for (int i = 0; i < 2; i++) {
+      try {
+        api.admin.getVersion();
+        fail("The call should have failed.");
+      } catch (EspritConnectionException e) {
+        assertEquals(CircuitState.OPEN, api.getMetrics().getCircuitState());
+      }
+      Thread.sleep(150);
+    }
+    assertEquals(2, server.getRequests());
+    assertEquals(2, api.getMetrics().getCircuitTrips());
+  }
+
+}
@@ -0,0 +1,73 @@
+package org.keeber.esprit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+  @Test
+  public void testDefaultPoolIsUnbounded() {
+    assertEquals(Integer.MAX_VALUE, new ConnectionPool().getMaxPerHost());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testLimitMustBePositive() {
+    new ConnectionPool(0);
+  }
+
+  @Test
+  public void testLimitPerHost() throws IOException {
+    ConnectionPool pool = new ConnectionPool(1).setAcquireTimeout(50);
+    URL a = new URL("http://localhost:1/rpc"), b = new URL("http://localhost:2/rpc");
+    ConnectionPool.Lease lease = pool.lease(a);
+    assertEquals(1, pool.getLeased(a));
+    try {
+      pool.lease(a);
+      fail("Leased more than the limit.");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("POOL Exhausted"));
+    }
+    // Another host (or port) has a limit of its own.
+    pool.lease(b).discard();
+    lease.discard();
+    assertEquals(0, pool.getLeased(a));
+    pool.lease(a).discard();
+  }
+
+  @Test
+  public void testLeaseIsReturnedOnce() throws IOException {
+    ConnectionPool pool = new ConnectionPool(2);
+    URL url = new URL("http://localhost:1/rpc");
+    ConnectionPool.Lease lease = pool.lease(url);
+    lease.discard();
+    lease.discard();
+    lease.release();
+    assertEquals(0, pool.getLeased(url));
+  }
+
+  @Test
+  public void testCallsReuseTheConnection() throws Exception {
+    Set<Integer> sockets = ConcurrentHashMap.newKeySet();
+    try (StubServer server = new StubServer((exchange, body) -> {
+      sockets.add(exchange.getRemoteAddress().getPort());
+      StubServer.reply(exchange, 200, "{\"result\":{\"version\":\"5\"}}");
+    })) {
+      EspritAPI api = server.newAPI();
+      for (int i = 0; i < 20; i++) {
+        assertTrue(api.admin.getVersion().hasResult());
+      }
+      assertEquals(20, server.getRequests());
+      assertEquals(1, sockets.size());
+      assertEquals(0, api.getConnectionPool().getLeased(new URL(server.getEndpoint())));
+    }
+  }
+
+}
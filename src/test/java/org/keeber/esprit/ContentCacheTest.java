@@ -0,0 +1,152 @@
+package org.keeber.esprit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.keeber.esprit.EspritAPI.ApiResponse;
+import org.keeber.esprit.EspritAPI.EspritConnectionException;
+
+import com.dalim.esprit.api.EsStream;
+
+public class ContentCacheTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private final AtomicInteger loads = new AtomicInteger();
+  private Path directory;
+
+  @Before
+  public void setUp() {
+    directory = folder.getRoot().toPath();
+  }
+
+  private ReferenceCache.Loader<InputStream> loader(String content) {
+    return () -> {
+      loads.incrementAndGet();
+      return new ApiResponse<InputStream>().setResult(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    };
+  }
+
+  private static String read(ApiResponse<FileChannel> response) throws IOException {
+    try (InputStream in = ContentCache.open(response.get())) {
+      return StubServer.read(in);
+    }
+  }
+
+  private String get(ContentCache cache, int documentID, String version, String content) throws Exception {
+    return read(cache.get(documentID, EsStream.thumbnail, version, loader(content)));
+  }
+
+  @Test
+  public void testHitsAreReadFromDisk() throws Exception {
+    ContentCache cache = new ContentCache(directory, 1024);
+    assertFalse(cache.caches(EsStream.file));
+    assertEquals("THUMB", get(cache, 42, null, "THUMB"));
+    assertEquals("THUMB", get(cache, 42, null, "OTHER"));
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getHits());
+    assertEquals(5, cache.getBytes());
+  }
+
+  @Test
+  public void testNewerVersionReplacesTheFile() throws Exception {
+    ContentCache cache = new ContentCache(directory, 1024);
+    get(cache, 42, "1@100", "V1");
+    assertEquals("V2", get(cache, 42, "2@200", "V2"));
+    assertEquals(1, cache.size());
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws Exception {
+    ContentCache cache = new ContentCache(directory, 10);
+    FileChannel held = cache.get(1, EsStream.thumbnail, null, loader("ONE...")).get();
+    get(cache, 2, null, "TWO...");
+    assertEquals(1, cache.size());
+    assertEquals(6, cache.getBytes());
+    // Still readable until it is closed.
+    assertEquals("ONE...", read(new ApiResponse<FileChannel>().setResult(held)));
+  }
+
+  @Test
+  public void testInvalidateRemovesTheFiles() throws Exception {
+    ContentCache cache = new ContentCache(directory, 1024);
+    get(cache, 42, null, "THUMB");
+    cache.invalidate(42);
+    cache.flush();
+    assertEquals(0, cache.size());
+    try (Stream<Path> files = Files.list(directory)) {
+      assertFalse(files.anyMatch(p -> p.getFileName().toString().startsWith("42.")));
+    }
+  }
+
+  @Test
+  public void testReopenedFromTheIndex() throws Exception {
+    ContentCache cache = new ContentCache(directory, 1024);
+    get(cache, 42, null, "THUMB");
+    cache.flush();
+    ContentCache reopened = new ContentCache(directory, 1024);
+    assertEquals(1, reopened.size());
+    assertEquals("THUMB", get(reopened, 42, null, "OTHER"));
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void testOnlyItsOwnOrphansAreRemoved() throws Exception {
+    Path orphan = Files.write(directory.resolve("7.thumbnail.1f"), new byte[1]), other = Files.write(directory.resolve("notes.txt"), new byte[1]);
+    new ContentCache(directory, 1024);
+    assertFalse(Files.exists(orphan));
+    assertTrue(Files.exists(other));
+  }
+
+  @Test
+  public void testConcurrentMissesShareOneLoad() throws Exception {
+    ContentCache cache = new ContentCache(directory, 1024);
+    CountDownLatch release = new CountDownLatch(1);
+    ReferenceCache.Loader<InputStream> slow = () -> {
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new EspritConnectionException("Interrupted", e);
+      }
+      return loader("PREVIEW").load();
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> readers = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        readers.add(executor.submit(() -> read(cache.get(60, EsStream.preview, null, slow))));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      for (Future<String> reader : readers) {
+        assertEquals("PREVIEW", reader.get(5, TimeUnit.SECONDS));
+      }
+      assertEquals(1, loads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+}
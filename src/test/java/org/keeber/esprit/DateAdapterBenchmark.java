@@ -0,0 +1,57 @@
+package org.keeber.esprit;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dalim.esprit.api.document.EsDocument;
+import com.google.gson.Gson;
+
+/**
+ * <p>
+ * Reading and writing dates from many threads at once - the shared Gson (and its formatter) against
+ * a SimpleDateFormat per call (what the date adapter used to do). The document round trip is the
+ * same work as a typical document.get reply.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class DateAdapterBenchmark {
+  private static final String DATE = "2017-10-17T12:30:00+02:00";
+  private static final String DOCUMENT = "{\"ID\":1234,\"name\":\"Document.pdf\",\"class\":\"Document\",\"jobID\":12,\"creationUser\":\"admin\","
+      + "\"creationDate\":\"2017-10-10T09:15:00+02:00\",\"lastModificationDate\":\"2017-10-17T12:30:00+02:00\",\"lastModificationUser\":\"admin\"}";
+  private Gson gson = EspritAPI.json.getCompact();
+
+  @Benchmark
+  public String shared() {
+    return gson.toJson(gson.fromJson('"' + DATE + '"', Date.class));
+  }
+
+  @Benchmark
+  public String allocated() throws ParseException {
+    return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX").format(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX").parse(DATE));
+  }
+
+  @Benchmark
+  public String document() {
+    return gson.toJson(gson.fromJson(DOCUMENT, EsDocument.class));
+  }
+
+}
@@ -0,0 +1,56 @@
+package org.keeber.esprit;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dalim.esprit.api.production.EsSqlResult;
+import com.joestelmach.natty.DateGroup;
+import com.joestelmach.natty.Parser;
+
+/**
+ * <p>
+ * Parsing an SQL result date cell - through the header (cached formatters, natty only as a fall
+ * back) against a natty parser per value (what the header used to do).
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DateParseBenchmark {
+  @Param({"2017-10-17T12:30:00+02:00", "2017-10-17 12:30:00", "2017-10-17"})
+  private String value;
+  private EsSqlResult.Header header;
+
+  @Setup
+  public void setup() {
+    header = EspritAPI.json.getCompact().fromJson("{\"name\":\"lastModificationDate\",\"table\":\"DOCUMENT\",\"type\":\"DT\"}", EsSqlResult.Header.class);
+  }
+
+  @Benchmark
+  public Date header() {
+    return header.toObject(value, Date.class);
+  }
+
+  @Benchmark
+  public Date natty() {
+    List<DateGroup> groups = new Parser().parse(value);
+    return groups.isEmpty() || groups.get(0).getDates().isEmpty() ? null : groups.get(0).getDates().get(0);
+  }
+
+}
@@ -0,0 +1,144 @@
+package org.keeber.esprit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.keeber.esprit.EspritAPI.ApiRequest;
+import org.keeber.esprit.EspritAPI.ApiResponse;
+
+import com.dalim.esprit.api.EsStatus;
+import com.dalim.esprit.api.document.EsDocument;
+import com.dalim.esprit.api.job.EsJob;
+
+public class EntityCacheTest {
+  private final AtomicInteger loads = new AtomicInteger();
+  private final EntityCache cache = new EntityCache();
+
+  private <T> ApiResponse<T> load(String type, Class<T> clazz, int ID, int jobID) throws Exception {
+    return cache.get(ApiRequest.from(type + ".get", clazz).put("ID", ID).put("withXMP", false), () -> {
+      loads.incrementAndGet();
+      return new ApiResponse<T>().setResult(EspritAPI.json.getCompact().fromJson("{\"ID\":" + ID + ",\"jobID\":" + jobID + "}", clazz));
+    });
+  }
+
+  private ApiResponse<EsDocument> document(int ID, int jobID) throws Exception {
+    return load("document", EsDocument.class, ID, jobID);
+  }
+
+  private void change(ApiRequest<?> request) throws Exception {
+    cache.get(request, () -> new ApiResponse<>());
+  }
+
+  @Test
+  public void testReadsAreCached() throws Exception {
+    EsDocument first = document(7, 1).get();
+    assertSame(first, document(7, 1).get());
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getHits());
+    // Another variant of the same object is cached on its own.
+    cache.get(ApiRequest.from("document.get", EsDocument.class).put("ID", 7).put("withXMP", true), () -> {
+      loads.incrementAndGet();
+      return new ApiResponse<EsDocument>().setResult(first);
+    });
+    assertEquals(2, loads.get());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    cache.setTTL(20);
+    document(7, 1);
+    Thread.sleep(40);
+    document(7, 1);
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testEditDropsTheObject() throws Exception {
+    document(7, 1);
+    load("job", EsJob.class, 7, 0);
+    change(ApiRequest.from("document.edit", EsStatus.class).put("ID", 7));
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getInvalidations());
+    document(7, 1);
+    assertEquals(3, loads.get());
+  }
+
+  @Test
+  public void testLoadOverlappingAChangeIsNotCached() throws Exception {
+    cache.get(ApiRequest.from("document.get", EsDocument.class).put("ID", 7), () -> {
+      cache.changed(ApiRequest.from("document.approve", EsStatus.class).put("ID", 7));
+      return new ApiResponse<EsDocument>().setResult(new EsDocument());
+    });
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testJobDeleteDropsItsDocuments() throws Exception {
+    document(7, 1);
+    document(8, 2);
+    change(ApiRequest.from("job.delete", EsStatus.class).put("ID", 1));
+    assertEquals(1, cache.size());
+    document(8, 2);
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testUploadDropsTheDocumentsOfItsJob() throws Exception {
+    document(7, 1);
+    document(8, 2);
+    cache.uploaded(1);
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testWorkflowCallsDropTheirObjects() throws Exception {
+    document(7, 1);
+    load("job", EsJob.class, 7, 0);
+    document(8, 1);
+    change(ApiRequest.from("workflow.exportWFL", String.class).put("ID", 7));
+    assertEquals(3, cache.size());
+    change(ApiRequest.from("workflow.approve", EsStatus.class).put("class", "PageOrder").put("IDs", Arrays.asList(7, 8)));
+    assertEquals(1, cache.size());
+    change(ApiRequest.from("workflow.approve", EsStatus.class).put("ID", 7));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testRevalidatedByType() throws Exception {
+    Map<String, Map<Integer, ?>> checked = new TreeMap<>();
+    cache.setRevalidator(200, (type, modified) -> {
+      checked.put(type, modified);
+      return type.equals("document") ? Collections.singleton(7) : Collections.emptySet();
+    });
+    document(7, 1);
+    load("job", EsJob.class, 7, 0);
+    Thread.sleep(250);
+    document(7, 1);
+    assertEquals(Arrays.asList("document", "job"), Arrays.asList(checked.keySet().toArray()));
+    assertEquals(3, loads.get());
+    // The job was valid and is trusted again until the next check.
+    load("job", EsJob.class, 7, 0);
+    assertEquals(3, loads.get());
+  }
+
+  @Test
+  public void testBoundedByEntries() throws Exception {
+    cache.setMaxEntries(2);
+    document(1, 1);
+    document(2, 1);
+    document(1, 1);
+    document(3, 1);
+    assertEquals(2, cache.size());
+    document(1, 1);
+    assertEquals(3, loads.get());
+  }
+
+}
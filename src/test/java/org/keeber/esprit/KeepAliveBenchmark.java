@@ -0,0 +1,61 @@
+package org.keeber.esprit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dalim.esprit.api.admin.EsVersion;
+
+/**
+ * <p>
+ * Calls per second against a local stub server - with the pooled keep-alive connections and with
+ * keep-alive switched off (a new connection for every call, which is what the transport used to
+ * do). Over loopback this only shows the TCP setup - over TLS and a real network the gap is wider.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class KeepAliveBenchmark {
+  private StubServer server;
+  private EspritAPI api;
+
+  @Setup
+  public void setup() throws Exception {
+    server = new StubServer((exchange, body) -> StubServer.reply(exchange, 200, "{\"result\":{\"version\":\"5.0\"}}"));
+    api = server.newAPI();
+  }
+
+  @TearDown
+  public void tearDown() {
+    api.logout();
+    server.close();
+  }
+
+  @Benchmark
+  public EsVersion pooled() throws Exception {
+    return api.admin.getVersion().get();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Dhttp.keepAlive=false")
+  public EsVersion disconnected() throws Exception {
+    return api.admin.getVersion().get();
+  }
+
+}
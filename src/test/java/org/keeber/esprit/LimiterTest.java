@@ -0,0 +1,82 @@
+package org.keeber.esprit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.keeber.esprit.EspritAPI.EspritConnectionException;
+
+public class LimiterTest {
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInitialMustBeWithinTheLimits() {
+    new Limiter().setConcurrency(10, 1, 8);
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws Exception {
+    Limiter limiter = new Limiter().setConcurrency(1, 1, 1).setAdaptive(false).setMaxWait(0);
+    long start = limiter.acquire();
+    assertEquals(1, limiter.getInFlight());
+    try {
+      limiter.acquire();
+      fail("Acquired over the limit.");
+    } catch (EspritConnectionException e) {
+      assertTrue(e.getMessage().startsWith("LIMIT Exceeded"));
+    }
+    assertEquals(1, limiter.getRejections());
+    limiter.release(start, false);
+    limiter.acquire();
+    limiter.cancel();
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testWaiterIsWokenByRelease() throws Exception {
+    Limiter limiter = new Limiter().setConcurrency(1, 1, 1).setAdaptive(false).setMaxWait(5000);
+    long start = limiter.acquire();
+    CompletableFuture<Long> waiter = CompletableFuture.supplyAsync(() -> {
+      try {
+        return limiter.acquire();
+      } catch (EspritConnectionException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(50);
+    assertFalse(waiter.isDone());
+    limiter.release(start, false);
+    waiter.get(1, TimeUnit.SECONDS);
+    assertEquals(1, limiter.getInFlight());
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    Limiter limiter = new Limiter().setRate(10, 1).setMaxWait(0);
+    limiter.acquire();
+    limiter.cancel();
+    try {
+      limiter.acquire();
+      fail("Acquired over the rate.");
+    } catch (EspritConnectionException e) {
+      assertEquals(1, limiter.getRejections());
+    }
+    // The next token is due after 100ms.
+    limiter.setMaxWait(500).acquire();
+    limiter.cancel();
+  }
+
+  @Test
+  public void testOverloadShrinksTheLimit() throws Exception {
+    Limiter limiter = new Limiter().setConcurrency(10, 2, 10).setMaxWait(0);
+    limiter.release(limiter.acquire(), true);
+    assertEquals(9, limiter.getLimit());
+    limiter.setAdaptive(false).release(limiter.acquire(), true);
+    assertEquals(9, limiter.getLimit());
+  }
+
+}
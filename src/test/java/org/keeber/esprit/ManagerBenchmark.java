@@ -0,0 +1,72 @@
+package org.keeber.esprit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.keeber.esprit.EspritAPI.EspritConnectionException;
+
+/**
+ * <p>
+ * Acquire and release contention on the manager - 1 to 256 threads sharing a pool of 8 sessions
+ * with at most 4 calls in flight. Sessions are logged in against a local stub server.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ManagerBenchmark {
+  private StubServer server;
+  private EspritAPIManager manager;
+
+  @Setup
+  public void setup() throws Exception {
+    server = new StubServer();
+    manager = new EspritAPIManager(server.getEndpoint(), "user", "password").setPoolSize(1, 8).setMaxInFlight(4).setConnectionTimeout(200)
+        .setAcquireTimeout(TimeUnit.MINUTES.toMillis(1));
+  }
+
+  @TearDown
+  public void tearDown() {
+    manager.shutdown();
+    server.close();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void uncontended() throws EspritConnectionException {
+    acquire();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void contended() throws EspritConnectionException {
+    acquire();
+  }
+
+  @Benchmark
+  @Threads(256)
+  public void saturated() throws EspritConnectionException {
+    acquire();
+  }
+
+  private void acquire() throws EspritConnectionException {
+    try (EspritAPIManager.ManagedEspritAPI api = manager.acquireAPI()) {
+    }
+  }
+
+}
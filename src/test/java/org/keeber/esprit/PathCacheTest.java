@@ -0,0 +1,104 @@
+package org.keeber.esprit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.keeber.esprit.EspritAPI.ApiRequest;
+import org.keeber.esprit.EspritAPI.ApiResponse;
+
+import com.dalim.esprit.api.EsClass;
+import com.dalim.esprit.api.EsRef;
+import com.dalim.esprit.api.EsStatus;
+import com.dalim.esprit.api.admin.EsError;
+import com.dalim.esprit.api.document.EsDocument;
+
+public class PathCacheTest {
+  private static final String JOB = "/Customer/Job", DOC = JOB + "/Doc.pdf";
+
+  @Test
+  public void testResolve() {
+    PathCache cache = new PathCache();
+    assertFalse(cache.resolve(DOC).isPresent());
+    cache.put(DOC, 7, EsClass.PageOrder);
+    assertEquals(Integer.valueOf(7), cache.resolve(DOC).get().getID());
+    assertEquals(EsClass.PageOrder, cache.resolve(DOC).get().getEsclass());
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    PathCache cache = new PathCache(2);
+    cache.put("/a", 1, null);
+    cache.put("/b", 2, null);
+    cache.resolve("/a");
+    cache.put("/c", 3, null);
+    assertEquals(2, cache.size());
+    assertTrue(cache.resolve("/a").isPresent());
+    assertFalse(cache.resolve("/b").isPresent());
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    PathCache cache = new PathCache().setTTL(20);
+    cache.put(DOC, 7, null);
+    Thread.sleep(40);
+    assertFalse(cache.resolve(DOC).isPresent());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testInvalidateDropsEverythingBelow() {
+    PathCache cache = new PathCache();
+    cache.put(JOB, 3, EsClass.Job);
+    cache.put(DOC, 7, null);
+    cache.put(JOB + "2", 4, EsClass.Job);
+    cache.invalidate(JOB);
+    assertFalse(cache.resolve(DOC).isPresent());
+    assertTrue(cache.resolve(JOB + "2").isPresent());
+    cache.put(DOC, 7, null);
+    cache.invalidate(4);
+    cache.invalidate(7);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testReadsAreSentWithTheCachedID() {
+    PathCache cache = new PathCache();
+    cache.put(DOC, 7, null);
+    ApiRequest<EsDocument> request = ApiRequest.from("document.get", EsDocument.class, EsRef.from(DOC));
+    ApiRequest<EsDocument> sent = cache.rewrite(request);
+    assertNotSame(request, sent);
+    assertEquals("7", sent.getParams().get("ID"));
+    assertFalse(sent.getParams().containsKey("path"));
+    // The caller's request isn't changed.
+    assertEquals(DOC, request.getParams().get("path"));
+    // A failure made with the cached ID forgets it.
+    cache.learn(request, sent, new ApiResponse<EsDocument>().setError(EspritAPI.json.getCompact().fromJson("{\"code\":1,\"message\":\"Not found\"}", EsError.class)));
+    assertFalse(cache.resolve(DOC).isPresent());
+  }
+
+  @Test
+  public void testChangesAreSentWithThePath() {
+    PathCache cache = new PathCache();
+    cache.put(JOB, 3, EsClass.Job);
+    cache.put(DOC, 7, null);
+    ApiRequest<EsStatus> request = ApiRequest.from("document.edit", EsStatus.class, EsRef.from(DOC));
+    assertSame(request, cache.rewrite(request));
+    assertFalse(cache.resolve(DOC).isPresent());
+    assertTrue(cache.resolve(JOB).isPresent());
+  }
+
+  @Test
+  public void testLearnFromReads() {
+    PathCache cache = new PathCache();
+    ApiRequest<EsDocument> request = ApiRequest.from("document.get", EsDocument.class, EsRef.from(DOC));
+    cache.learn(request, request, new ApiResponse<EsDocument>().setResult(EspritAPI.json.getCompact().fromJson("{\"ID\":7,\"name\":\"Doc.pdf\"}", EsDocument.class)));
+    assertEquals(Integer.valueOf(7), cache.resolve(DOC).get().getID());
+  }
+
+}
@@ -0,0 +1,100 @@
+package org.keeber.esprit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.keeber.esprit.EspritAPI.ApiResponse;
+import org.keeber.esprit.EspritAPI.EspritConnectionException;
+
+import com.dalim.esprit.api.admin.EsError;
+
+public class ReferenceCacheTest {
+  private static final String METHOD = "production.workflows", KEY = METHOD + "|{}";
+  private final AtomicInteger loads = new AtomicInteger();
+
+  private ApiResponse<String> result(String value) {
+    loads.incrementAndGet();
+    return new ApiResponse<String>().setResult(value);
+  }
+
+  private ApiResponse<String> error() {
+    loads.incrementAndGet();
+    return new ApiResponse<String>().setError(EspritAPI.json.getCompact().fromJson("{\"code\":503,\"message\":\"Unavailable\"}", EsError.class));
+  }
+
+  @Test
+  public void testHitsAndMisses() throws Exception {
+    ReferenceCache cache = new ReferenceCache(1000 * 60);
+    assertTrue(cache.caches(METHOD));
+    assertEquals("A", cache.get(METHOD, KEY, () -> result("A")).get());
+    assertEquals("A", cache.get(METHOD, KEY, () -> result("B")).get());
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    cache.invalidate(METHOD);
+    assertEquals("C", cache.get(METHOD, KEY, () -> result("C")).get());
+  }
+
+  @Test
+  public void testErrorsAreNotCached() throws Exception {
+    ReferenceCache cache = new ReferenceCache(1000 * 60);
+    assertTrue(cache.get(METHOD, KEY, this::error).hasError());
+    assertEquals("A", cache.get(METHOD, KEY, () -> result("A")).get());
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testStaleValueIsServedWhenTheReloadFails() throws Exception {
+    ReferenceCache cache = new ReferenceCache(50).setRefreshAhead(1).setMaxStale(1000 * 60);
+    cache.get(METHOD, KEY, () -> result("A"));
+    Thread.sleep(80);
+    assertEquals("A", cache.get(METHOD, KEY, this::error).get());
+    assertEquals("A", cache.get(METHOD, KEY, () -> {
+      throw new EspritConnectionException("CONNECTION Refused");
+    }).get());
+    assertEquals(2, cache.getStaleHits());
+    // Past the max stale time the failure is returned.
+    cache.setMaxStale(0);
+    assertTrue(cache.get(METHOD, KEY, this::error).hasError());
+  }
+
+  @Test
+  public void testLoadOverlappingAnInvalidationIsNotCached() throws Exception {
+    ReferenceCache cache = new ReferenceCache(1000 * 60);
+    assertEquals("A", cache.get(METHOD, KEY, () -> {
+      cache.invalidate(METHOD);
+      return result("A");
+    }).get());
+    assertEquals("B", cache.get(METHOD, KEY, () -> result("B")).get());
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void testRefreshUsesTheLatestLoader() throws Exception {
+    ReferenceCache cache = new ReferenceCache(1000).setRefreshAhead(0.1);
+    CountDownLatch refreshed = new CountDownLatch(1);
+    AtomicInteger first = new AtomicInteger();
+    cache.get(METHOD, KEY, () -> {
+      first.incrementAndGet();
+      return result("A");
+    });
+    Thread.sleep(150);
+    assertEquals("A", cache.get(METHOD, KEY, () -> {
+      refreshed.countDown();
+      return result("B");
+    }).get());
+    assertTrue(refreshed.await(1, TimeUnit.SECONDS));
+    assertEquals(1, first.get());
+    assertEquals(1, cache.getRefreshes());
+    for (int i = 0; i < 50 && !"B".equals(cache.get(METHOD, KEY, () -> result("C")).get()); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals("B", cache.get(METHOD, KEY, () -> result("C")).get());
+  }
+
+}
@@ -0,0 +1,113 @@
+package org.keeber.esprit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>
+ * A local HTTP server standing in for Esprit in the tests and benchmarks - logins are answered
+ * with a session and every other request is passed to the handler.
+ *
+ */
+class StubServer implements Closeable {
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "StubServer");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final AtomicInteger logins = new AtomicInteger(), requests = new AtomicInteger();
+
+  static {
+    // The JDK server writes the headers and the body separately - without this Nagle's algorithm
+    // (and the client's delayed ACK) adds ~40ms to every call on a kept alive connection.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  interface Handler {
+
+    void handle(HttpExchange exchange, String body) throws IOException;
+
+  }
+
+  /**
+   * A server answering every call with an empty result.
+   */
+  StubServer() throws IOException {
+    this((exchange, body) -> reply(exchange, 200, "{\"result\":{}}"));
+  }
+
+  StubServer(Handler handler) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/", exchange -> {
+      try {
+        String body = read(exchange.getRequestBody());
+        if (body.contains("\"admin.login\"")) {
+          reply(exchange, 200, "{\"result\":{\"sessionID\":\"S" + logins.incrementAndGet() + "\"}}");
+        } else {
+          requests.incrementAndGet();
+          handler.handle(exchange, body);
+        }
+      } finally {
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  String getEndpoint() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  EspritAPI newAPI() throws EspritAPI.EspritConnectionException {
+    return new EspritAPI(getEndpoint(), "user", "password", true);
+  }
+
+  int getLogins() {
+    return logins.get();
+  }
+
+  /**
+   * @return the requests other than logins.
+   */
+  int getRequests() {
+    return requests.get();
+  }
+
+  static void reply(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+    if (bytes.length > 0) {
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(bytes);
+      }
+    }
+  }
+
+  static String read(InputStream is) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024 * 8];
+    for (int read; (read = is.read(buffer)) > -1;) {
+      bos.write(buffer, 0, read);
+    }
+    return bos.toString("ISO-8859-1");
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+}
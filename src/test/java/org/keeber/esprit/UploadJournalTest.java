@@ -0,0 +1,135 @@
+package org.keeber.esprit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UploadJournalTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private final EspritAPI api = new EspritAPI("http://localhost:1", "user", "password");
+  private Path directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = folder.newFolder("journal").toPath();
+  }
+
+  private UploadPipeline.Item item(String name) throws IOException {
+    Path file = folder.getRoot().toPath().resolve(name);
+    if (!Files.exists(file)) {
+      Files.write(file, new byte[100]);
+    }
+    return new UploadPipeline.Item(file, api.document.newUploadMetadata(7).add("ns", "prop", "value"));
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.sorted().collect(Collectors.toList());
+    }
+  }
+
+  @Test
+  public void testPendingUploadsAreReplayed() throws IOException {
+    UploadPipeline.Item a = item("a.pdf"), b = item("b.pdf");
+    try (UploadJournal journal = new UploadJournal(directory)) {
+      journal.intent(a, "");
+      journal.intent(b, null);
+      journal.done(a, 1001);
+    }
+    try (UploadJournal journal = new UploadJournal(directory)) {
+      assertEquals(2, journal.size());
+      assertTrue(journal.isDone(a));
+      assertEquals(Optional.of(1001), journal.getDocumentID(a));
+      assertFalse(journal.isDone(b));
+      List<UploadPipeline.Item> pending = journal.pending(api);
+      assertEquals(1, pending.size());
+      assertEquals(b.getKey(), pending.get(0).getKey());
+      assertEquals("value", pending.get(0).getMetadata().getEntries().get("MetaData/:ns/prop"));
+      assertTrue(pending.get(0).isUnchanged());
+    }
+  }
+
+  @Test
+  public void testPendingKeepsTheJournaledFile() throws IOException {
+    UploadPipeline.Item a = item("a.pdf");
+    try (UploadJournal journal = new UploadJournal(directory)) {
+      journal.intent(a, "");
+    }
+    Files.write(a.getFile(), new byte[200]);
+    Files.setLastModifiedTime(a.getFile(), FileTime.fromMillis(System.currentTimeMillis() + 5000));
+    try (UploadJournal journal = new UploadJournal(directory)) {
+      UploadPipeline.Item pending = journal.pending(api).get(0);
+      assertEquals(a.getKey(), pending.getKey());
+      assertFalse(pending.isUnchanged());
+    }
+  }
+
+  @Test
+  public void testAbandonedUploadsAreDropped() throws IOException {
+    UploadPipeline.Item a = item("a.pdf");
+    try (UploadJournal journal = new UploadJournal(directory)) {
+      journal.intent(a, "");
+      journal.abandon(a);
+      assertEquals(0, journal.size());
+    }
+    try (UploadJournal journal = new UploadJournal(directory)) {
+      assertEquals(0, journal.size());
+      assertTrue(journal.pending(api).isEmpty());
+    }
+  }
+
+  @Test
+  public void testTornRecordIsIgnored() throws IOException {
+    UploadPipeline.Item a = item("a.pdf"), b = item("b.pdf");
+    try (UploadJournal journal = new UploadJournal(directory)) {
+      journal.intent(a, "");
+      journal.intent(b, "");
+    }
+    // Corrupt the second record (after the length and checksum of the first).
+    Path segment = segments().get(0);
+    byte[] bytes = Files.readAllBytes(segment);
+    int second = 8 + ByteBuffer.wrap(bytes).getInt();
+    bytes[second + 12] ^= 0xFF;
+    Files.write(segment, bytes);
+    try (UploadJournal journal = new UploadJournal(directory)) {
+      assertEquals(1, journal.size());
+      assertEquals(a.getKey(), journal.pending(api).get(0).getKey());
+    }
+  }
+
+  @Test
+  public void testSegmentsRollAndAreCompacted() throws IOException {
+    try (UploadJournal journal = new UploadJournal(directory, 1024)) {
+      for (int i = 0; i < 20; i++) {
+        UploadPipeline.Item item = item(i + ".pdf");
+        journal.intent(item, "");
+        if (i % 2 == 0) {
+          journal.done(item, i);
+        }
+      }
+      assertTrue(segments().size() > 1);
+    }
+    try (UploadJournal journal = new UploadJournal(directory, 1024)) {
+      assertEquals(20, journal.size());
+      assertEquals(10, journal.pending(api).size());
+      assertTrue(journal.getDocumentID(item("4.pdf")).isPresent());
+    }
+  }
+
+}